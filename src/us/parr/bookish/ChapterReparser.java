@@ -0,0 +1,366 @@
+package us.parr.bookish;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+import us.parr.bookish.model.entity.ChapterDef;
+import us.parr.bookish.model.entity.EntityDef;
+import us.parr.bookish.model.entity.ExecutableCodeDef;
+import us.parr.bookish.parse.BookishLexer;
+import us.parr.bookish.parse.BookishParser;
+import us.parr.lib.collections.MutableInt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Keep one chapter's parse in memory so an edit/preview loop (Tool
+ *  -watch) can reparse just the ## sections whose text changed rather
+ *  than the whole file.
+ *
+ *  A section's tree, entities, and code blocks depend only on its own
+ *  tokens and the parser counters on the way in (SectionState), so a
+ *  section whose text and incoming state match last time keeps its tree;
+ *  its tokens are just moved to their new positions. A changed section is
+ *  parsed on its own from the section rule and spliced into the chapter
+ *  tree. If that changes the state it hands on (it gained a figure, say),
+ *  the following sections get reparsed too so numbers stay right.
+ *
+ *  Any edit to the chapter head (title, abstract, text before the first
+ *  section), adding or removing a section, or a syntax error in a
+ *  reparsed section means a full parse. We still lex the whole chapter
+ *  every time; that's cheap next to parsing.
+ */
+public class ChapterReparser {
+	/** Parser counters as a section starts */
+	public static class SectionState {
+		public final int defCounter, figCounter, secCounter;
+		public final Map<String,Integer> codeCounters = new HashMap<>();
+
+		public SectionState(BookishParser parser) {
+			defCounter = parser.defCounter;
+			figCounter = parser.figCounter;
+			secCounter = parser.secCounter;
+			for (Map.Entry<String,MutableInt> e : parser.codeCounters.entrySet()) {
+				codeCounters.put(e.getKey(), e.getValue().v);
+			}
+		}
+
+		public void restore(BookishParser parser) {
+			parser.defCounter = defCounter;
+			parser.figCounter = figCounter;
+			parser.secCounter = secCounter;
+			parser.codeCounters = new HashMap<>();
+			for (Map.Entry<String,Integer> e : codeCounters.entrySet()) {
+				parser.codeCounters.put(e.getKey(), new MutableInt(e.getValue()));
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if ( this==o ) return true;
+			if ( !(o instanceof SectionState) ) return false;
+			SectionState s = (SectionState)o;
+			return defCounter==s.defCounter && figCounter==s.figCounter && secCounter==s.secCounter &&
+				codeCounters.equals(s.codeCounters);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(defCounter, figCounter, secCounter, codeCounters);
+		}
+	}
+
+	protected static class Section {
+		public String text; // from the blank line before ## up to the next section
+		public SectionState in, out;
+		public BookishParser.SectionContext tree;
+		public List<EntityDef> entities = new ArrayList<>();
+		public List<ExecutableCodeDef> codeBlocks = new ArrayList<>();
+	}
+
+	/** Notes the state and how many entities and code blocks exist as
+	 *  each top-level section starts so a full parse can be cut up.
+	 */
+	protected static class RecordingParser extends BookishParser {
+		public List<SectionState> states = new ArrayList<>();
+		public List<Integer> entityCounts = new ArrayList<>();
+		public List<Integer> codeCounts = new ArrayList<>();
+
+		public RecordingParser(TokenStream input, String inputFilename, int chapNumber) {
+			super(input, inputFilename, chapNumber);
+		}
+
+		@Override
+		public void enterRule(ParserRuleContext localctx, int state, int ruleIndex) {
+			super.enterRule(localctx, state, ruleIndex);
+			if ( ruleIndex==RULE_section ) {
+				states.add(new SectionState(this));
+				entityCounts.add(entities.size());
+				codeCounts.add(codeBlocks.size());
+			}
+		}
+	}
+
+	public final String inputFilename;
+	public final int chapNumber;
+
+	public BookishParser.DocumentContext tree;
+	public Map<String,EntityDef> entities = new LinkedHashMap<>();
+	public List<ExecutableCodeDef> codeBlocks = new ArrayList<>();
+
+	/** Looks like it parsed the whole chapter: its entities, code blocks,
+	 *  and ending counters, like the parser Tool.parseChapter() returns.
+	 */
+	public BookishParser parser;
+
+	public int fullParses = 0;
+	public int sectionsReparsed = 0;
+
+	/** Passed to Tool.parse(); null means don't count or profile */
+	public AtomicInteger llFallbacks;
+	public ParserProfile profile;
+
+	protected CommonTokenStream tokens;
+	protected String headText;
+	protected List<EntityDef> headEntities = new ArrayList<>();
+	protected List<ExecutableCodeDef> headCodeBlocks = new ArrayList<>();
+	protected List<Section> sections; // null if we can't go section by section
+
+	/** Parsers of sections reparse() redid, holding their messages until it succeeds */
+	protected List<BookishParser> reparsed = new ArrayList<>();
+
+	public ChapterReparser(String inputFilename, int chapNumber) {
+		this.inputFilename = inputFilename;
+		this.chapNumber = chapNumber;
+	}
+
+	/** Parse text, reusing what we can from the previous call's parse */
+	public BookishParser.DocumentContext parse(String text) {
+		CharStream input = CharStreams.fromString(text, inputFilename);
+		CommonTokenStream newTokens = new CommonTokenStream(new BookishLexer(input));
+		newTokens.fill();
+		if ( tree==null || sections==null || !reparse(input, newTokens) ) {
+			fullParse(input, newTokens);
+		}
+		return tree;
+	}
+
+	protected void fullParse(CharStream input, CommonTokenStream newTokens) {
+		fullParses++;
+		Pair<ParserRuleContext,RecordingParser> results = Tool.parse(() -> {
+			newTokens.seek(0);
+			return new RecordingParser(newTokens, inputFilename, chapNumber);
+		}, "document", llFallbacks, profile);
+		RecordingParser parser = results.b;
+		parser.printMessages();
+		this.parser = parser;
+		tokens = newTokens;
+		tree = (BookishParser.DocumentContext)results.a;
+		entities = parser.entities;
+		codeBlocks = parser.codeBlocks;
+
+		sections = null;
+		List<Integer> starts = getSectionStarts(newTokens);
+		List<BookishParser.SectionContext> trees = tree.chapter().section();
+		if ( parser.getNumberOfSyntaxErrors()>0 || starts.size()!=trees.size() || starts.size()!=parser.states.size() ) {
+			return; // confused; just parse fully every time
+		}
+		List<EntityDef> defs = new ArrayList<>(entities.values());
+		headText = getText(input, 0, starts.isEmpty() ? input.size() : charIndex(newTokens, starts.get(0)));
+		headEntities = defs.subList(0, starts.isEmpty() ? defs.size() : parser.entityCounts.get(0));
+		headCodeBlocks = codeBlocks.subList(0, starts.isEmpty() ? codeBlocks.size() : parser.codeCounts.get(0));
+		sections = new ArrayList<>();
+		for (int i = 0; i<starts.size(); i++) {
+			if ( trees.get(i).start.getTokenIndex()!=starts.get(i) ) {
+				sections = null;
+				return;
+			}
+			boolean last = i==starts.size()-1;
+			Section s = new Section();
+			s.text = getSectionText(input, newTokens, starts, i);
+			s.tree = trees.get(i);
+			s.in = parser.states.get(i);
+			s.out = last ? new SectionState(parser) : parser.states.get(i+1);
+			s.entities = defs.subList(parser.entityCounts.get(i), last ? defs.size() : parser.entityCounts.get(i+1));
+			s.codeBlocks = codeBlocks.subList(parser.codeCounts.get(i), last ? codeBlocks.size() : parser.codeCounts.get(i+1));
+			sections.add(s);
+		}
+	}
+
+	/** Patch tree for newText section by section; false if we can't */
+	protected boolean reparse(CharStream input, CommonTokenStream newTokens) {
+		reparsed.clear();
+		List<Integer> starts = getSectionStarts(newTokens);
+		if ( starts.size()!=sections.size() || starts.isEmpty() ) {
+			return false;
+		}
+		if ( !getText(input, 0, charIndex(newTokens, starts.get(0))).equals(headText) ) {
+			return false;
+		}
+		BookishParser.ChapterContext chapter = tree.chapter();
+		moveTokens(newTokens, 0, 0, starts.get(0)); // head is unchanged, like all sections we don't reparse
+		List<Section> newSections = new ArrayList<>();
+		SectionState state = sections.get(0).in;
+		for (int i = 0; i<starts.size(); i++) {
+			Section old = sections.get(i);
+			String sectionText = getSectionText(input, newTokens, starts, i);
+			if ( sectionText.equals(old.text) && state.equals(old.in) ) {
+				moveTokens(newTokens, old.tree.start.getTokenIndex(), starts.get(i), old.tree.stop.getTokenIndex()-old.tree.start.getTokenIndex()+1);
+				newSections.add(old);
+				state = old.out;
+				continue;
+			}
+			Section s = parseSection(newTokens, starts, i, state);
+			if ( s==null ) {
+				return false;
+			}
+			s.text = sectionText;
+			int where = chapter.children.indexOf(old.tree);
+			chapter.children.set(where, s.tree);
+			s.tree.parent = chapter;
+			newSections.add(s);
+			state = s.out;
+			sectionsReparsed++;
+		}
+
+		// document's trailing BLANK_LINE? EOF come after the last section
+		Section last = newSections.get(newSections.size()-1);
+		chapter.stop = last.tree.stop;
+		int i = last.tree.stop.getTokenIndex()+1;
+		for (ParseTree kid : tree.children) {
+			if ( kid instanceof TerminalNodeImpl ) {
+				((TerminalNodeImpl)kid).symbol = newTokens.get(i++);
+			}
+		}
+		tree.stop = newTokens.get(newTokens.size()-1);
+
+		sections = newSections;
+		tokens = newTokens;
+		entities = new LinkedHashMap<>();
+		codeBlocks = new ArrayList<>();
+		addDefs(headEntities, headCodeBlocks);
+		for (Section s : sections) {
+			addDefs(s.entities, s.codeBlocks);
+		}
+		parser = new BookishParser(newTokens, inputFilename, chapNumber);
+		parser.entities = entities;
+		parser.codeBlocks = codeBlocks;
+		last.out.restore(parser);
+		parser.currentChap = getChapterDef();
+		for (BookishParser p : reparsed) {
+			p.printMessages();
+		}
+		reparsed.clear();
+		return true;
+	}
+
+	/** Parse section i alone from the section rule; null if it has errors
+	 *  or doesn't end where the next section starts.
+	 */
+	protected Section parseSection(CommonTokenStream newTokens, List<Integer> starts, int i, SectionState in) {
+		int start = starts.get(i);
+		Pair<ParserRuleContext,BookishParser> results = Tool.parse(() -> {
+			newTokens.seek(start);
+			BookishParser parser = new BookishParser(newTokens, inputFilename, chapNumber);
+			in.restore(parser);
+			parser.currentChap = getChapterDef();
+			return parser;
+		}, "section", llFallbacks, profile);
+		BookishParser parser = results.b;
+		int end = newTokens.index();
+		boolean done = i<starts.size()-1 ?
+			end==starts.get(i+1) :
+			newTokens.LA(1)==Token.EOF || (newTokens.LA(1)==BookishLexer.BLANK_LINE && newTokens.LA(2)==Token.EOF);
+		if ( parser.getNumberOfSyntaxErrors()>0 || !done ) {
+			return null;
+		}
+		Section s = new Section();
+		s.tree = (BookishParser.SectionContext)results.a;
+		s.in = in;
+		s.out = new SectionState(parser);
+		s.entities = new ArrayList<>(parser.entities.values());
+		s.codeBlocks = parser.codeBlocks;
+		reparsed.add(parser);
+		return s;
+	}
+
+	/** Make n tokens from oldStart in the old stream stand in for the same
+	 *  tokens at newStart in newTokens: same objects (trees and entities
+	 *  point at them) with new positions.
+	 */
+	protected void moveTokens(CommonTokenStream newTokens, int oldStart, int newStart, int n) {
+		for (int k = 0; k<n; k++) {
+			CommonToken o = (CommonToken)tokens.get(oldStart+k);
+			Token t = newTokens.get(newStart+k);
+			if ( o.getStartIndex()!=t.getStartIndex() || o.getTokenIndex()!=t.getTokenIndex() ) {
+				o.setText(o.getText()); // keep text; it's no longer where the char stream says
+				o.setStartIndex(t.getStartIndex());
+				o.setStopIndex(t.getStopIndex());
+				o.setLine(t.getLine());
+				o.setCharPositionInLine(t.getCharPositionInLine());
+				o.setTokenIndex(t.getTokenIndex());
+			}
+			newTokens.getTokens().set(newStart+k, o);
+		}
+	}
+
+	protected void addDefs(List<EntityDef> defs, List<ExecutableCodeDef> code) {
+		for (EntityDef def : defs) {
+			if ( entities.containsKey(def.label) ) {
+				System.err.printf("line %d: redefinition of label %s\n",
+				                  def.getStartToken().getLine(), def.label);
+			}
+			entities.put(def.label, def);
+		}
+		codeBlocks.addAll(code);
+	}
+
+	protected ChapterDef getChapterDef() {
+		for (EntityDef def : headEntities) {
+			if ( def instanceof ChapterDef ) {
+				return (ChapterDef)def;
+			}
+		}
+		return null;
+	}
+
+	/** Token index of the BLANK_LINE before each ## in tokens */
+	public static List<Integer> getSectionStarts(CommonTokenStream tokens) {
+		List<Integer> starts = new ArrayList<>();
+		for (int i = 1; i<tokens.size(); i++) {
+			if ( tokens.get(i).getType()==BookishLexer.SECTION &&
+				 tokens.get(i-1).getType()==BookishLexer.BLANK_LINE )
+			{
+				starts.add(i-1);
+			}
+		}
+		return starts;
+	}
+
+	protected static String getSectionText(CharStream input, CommonTokenStream tokens, List<Integer> starts, int i) {
+		int stop = i<starts.size()-1 ? charIndex(tokens, starts.get(i+1)) : input.size();
+		return getText(input, charIndex(tokens, starts.get(i)), stop);
+	}
+
+	/** Chars start..stop-1; CharStream indexes are code points, not Java chars */
+	protected static String getText(CharStream input, int start, int stop) {
+		return start<stop ? input.getText(Interval.of(start, stop-1)) : "";
+	}
+
+	protected static int charIndex(CommonTokenStream tokens, int tokenIndex) {
+		return tokens.get(tokenIndex).getStartIndex();
+	}
+}
@@ -0,0 +1,274 @@
+package us.parr.bookish;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.atn.ParseInfo;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import us.parr.bookish.parse.BookishParser;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonWriter;
+import javax.json.JsonWriterFactory;
+import javax.json.stream.JsonGenerator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/** Where BookishParser spends its prediction time (-profile-parser).
+ *  Tool.parse() turns on ANTLR profiling for every parse and adds each
+ *  parser's ParseInfo here, failed SLL attempts included, since they cost
+ *  time too. save() writes parser-profile.json and a parser-profile.txt
+ *  table, hottest decisions and rules first, to the build dir.
+ *
+ *  ANTLR times prediction, not whole rules, so a rule's time is the
+ *  prediction time of the decisions inside it. Thread safe.
+ */
+public class ParserProfile {
+	public static class DecisionStats {
+		public final int decision;
+		public final int ruleIndex;
+		public final String rule;
+		public long invocations;
+		public long timeInPrediction; // ns
+		public long SLL_TotalLook, SLL_MaxLook;
+		public long LL_TotalLook, LL_MaxLook;
+		public long LL_Fallback;      // SLL conflicted so decision retried with full LL
+		public long ambiguities;
+		public long contextSensitivities;
+		public long errors;
+		public long predicateEvals;
+
+		public DecisionStats(int decision, int ruleIndex) {
+			this.decision = decision;
+			this.ruleIndex = ruleIndex;
+			this.rule = BookishParser.ruleNames[ruleIndex];
+		}
+
+		public void add(DecisionInfo d) {
+			invocations += d.invocations;
+			timeInPrediction += d.timeInPrediction;
+			SLL_TotalLook += d.SLL_TotalLook;
+			SLL_MaxLook = Math.max(SLL_MaxLook, d.SLL_MaxLook);
+			LL_TotalLook += d.LL_TotalLook;
+			LL_MaxLook = Math.max(LL_MaxLook, d.LL_MaxLook);
+			LL_Fallback += d.LL_Fallback;
+			ambiguities += d.ambiguities.size();
+			contextSensitivities += d.contextSensitivities.size();
+			errors += d.errors.size();
+			predicateEvals += d.predicateEvals.size();
+		}
+	}
+
+	public static class RuleStats {
+		public final String rule;
+		public long invocations;
+		public long decisions;
+		public long decisionInvocations;
+		public long timeInPrediction; // ns
+		public long LL_Fallback;
+		public long ambiguities;
+
+		public RuleStats(String rule) {
+			this.rule = rule;
+		}
+	}
+
+	/** One parse (chapter, section, ...) and whether SLL had to give up on it */
+	public static class ParseStats {
+		public final String sourceName;
+		public final String startRule;
+		public final boolean sll;
+		public final boolean failed;
+		public final long time; // ns
+
+		public ParseStats(String sourceName, String startRule, boolean sll, boolean failed, long time) {
+			this.sourceName = sourceName;
+			this.startRule = startRule;
+			this.sll = sll;
+			this.failed = failed;
+			this.time = time;
+		}
+	}
+
+	/** Counts rule invocations, which ParseInfo doesn't */
+	public static class RuleCounter implements ParseTreeListener {
+		public final long[] invocations = new long[BookishParser.ruleNames.length];
+
+		@Override
+		public void enterEveryRule(ParserRuleContext ctx) { invocations[ctx.getRuleIndex()]++; }
+		@Override
+		public void exitEveryRule(ParserRuleContext ctx) { }
+		@Override
+		public void visitTerminal(TerminalNode node) { }
+		@Override
+		public void visitErrorNode(ErrorNode node) { }
+	}
+
+	protected final DecisionStats[] decisions;
+	protected final long[] ruleInvocations = new long[BookishParser.ruleNames.length];
+	protected final List<ParseStats> parses = new ArrayList<>();
+
+	public ParserProfile() {
+		BookishParser parser = new BookishParser(null);
+		decisions = new DecisionStats[parser.getATN().getNumberOfDecisions()];
+		for (int d = 0; d<decisions.length; d++) {
+			decisions[d] = new DecisionStats(d, parser.getATN().getDecisionState(d).ruleIndex);
+		}
+	}
+
+	/** Turn on profiling for parser; pass the counter back to add() */
+	public RuleCounter start(BookishParser parser) {
+		parser.setProfile(true);
+		RuleCounter counter = new RuleCounter();
+		parser.addParseListener(counter);
+		return counter;
+	}
+
+	public synchronized void add(BookishParser parser, RuleCounter counter,
+	                             String startRule, boolean failed, long time)
+	{
+		ParseInfo info = parser.getParseInfo();
+		if ( info==null ) {
+			return;
+		}
+		for (DecisionInfo d : info.getDecisionInfo()) {
+			decisions[d.decision].add(d);
+		}
+		for (int r = 0; r<ruleInvocations.length; r++) {
+			ruleInvocations[r] += counter.invocations[r];
+		}
+		boolean sll = parser.getInterpreter().getPredictionMode()==PredictionMode.SLL;
+		parses.add(new ParseStats(parser.getSourceName(), startRule, sll, failed, time));
+	}
+
+	public synchronized List<DecisionStats> getDecisionStats() {
+		List<DecisionStats> stats = new ArrayList<>();
+		for (DecisionStats d : decisions) {
+			if ( d.invocations>0 ) {
+				stats.add(d);
+			}
+		}
+		stats.sort(Comparator.comparingLong((DecisionStats d) -> d.timeInPrediction).reversed());
+		return stats;
+	}
+
+	public synchronized List<RuleStats> getRuleStats() {
+		List<RuleStats> stats = new ArrayList<>();
+		for (int r = 0; r<BookishParser.ruleNames.length; r++) {
+			stats.add(new RuleStats(BookishParser.ruleNames[r]));
+			stats.get(r).invocations = ruleInvocations[r];
+		}
+		for (DecisionStats d : decisions) {
+			RuleStats rs = stats.get(d.ruleIndex);
+			rs.decisions++;
+			rs.decisionInvocations += d.invocations;
+			rs.timeInPrediction += d.timeInPrediction;
+			rs.LL_Fallback += d.LL_Fallback;
+			rs.ambiguities += d.ambiguities;
+		}
+		stats.removeIf(r -> r.invocations==0 && r.decisionInvocations==0);
+		stats.sort(Comparator.comparingLong((RuleStats r) -> r.timeInPrediction).reversed());
+		return stats;
+	}
+
+	/** Write parser-profile.json and parser-profile.txt in dir */
+	public void save(String dir) throws IOException {
+		Path path = Paths.get(dir);
+		Files.createDirectories(path);
+		Files.write(path.resolve("parser-profile.json"), toJSON().getBytes(StandardCharsets.UTF_8));
+		Files.write(path.resolve("parser-profile.txt"), toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	public synchronized String toJSON() {
+		JsonArrayBuilder parseArray = Json.createArrayBuilder();
+		for (ParseStats p : parses) {
+			parseArray.add(Json.createObjectBuilder()
+				               .add("source", String.valueOf(p.sourceName))
+				               .add("startRule", p.startRule)
+				               .add("mode", p.sll ? "SLL" : "LL")
+				               .add("failed", p.failed)
+				               .add("ms", p.time/1e6));
+		}
+		JsonArrayBuilder ruleArray = Json.createArrayBuilder();
+		for (RuleStats r : getRuleStats()) {
+			ruleArray.add(Json.createObjectBuilder()
+				              .add("rule", r.rule)
+				              .add("invocations", r.invocations)
+				              .add("decisions", r.decisions)
+				              .add("decisionInvocations", r.decisionInvocations)
+				              .add("predictionMs", r.timeInPrediction/1e6)
+				              .add("LL_Fallback", r.LL_Fallback)
+				              .add("ambiguities", r.ambiguities));
+		}
+		JsonArrayBuilder decisionArray = Json.createArrayBuilder();
+		for (DecisionStats d : getDecisionStats()) {
+			decisionArray.add(Json.createObjectBuilder()
+				                  .add("decision", d.decision)
+				                  .add("rule", d.rule)
+				                  .add("invocations", d.invocations)
+				                  .add("predictionMs", d.timeInPrediction/1e6)
+				                  .add("SLL_TotalLook", d.SLL_TotalLook)
+				                  .add("SLL_MaxLook", d.SLL_MaxLook)
+				                  .add("LL_TotalLook", d.LL_TotalLook)
+				                  .add("LL_MaxLook", d.LL_MaxLook)
+				                  .add("LL_Fallback", d.LL_Fallback)
+				                  .add("ambiguities", d.ambiguities)
+				                  .add("contextSensitivities", d.contextSensitivities)
+				                  .add("errors", d.errors)
+				                  .add("predicateEvals", d.predicateEvals));
+		}
+		JsonObject profile = Json.createObjectBuilder()
+			.add("parses", parseArray)
+			.add("rules", ruleArray)
+			.add("decisions", decisionArray)
+			.build();
+		StringWriter buf = new StringWriter();
+		JsonWriterFactory factory =
+			Json.createWriterFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true));
+		try ( JsonWriter writer = factory.createWriter(buf) ) {
+			writer.writeObject(profile);
+		}
+		return buf.toString();
+	}
+
+	/** Text tables, hottest first */
+	@Override
+	public synchronized String toString() {
+		StringBuilder buf = new StringBuilder();
+		long sllFailures = parses.stream().filter(p -> p.sll && p.failed).count();
+		double totalMs = parses.stream().mapToLong(p -> p.time).sum()/1e6;
+		buf.append(String.format("%d parses, %.1f ms, %d fell back from SLL to full LL\n\n",
+		                         parses.size(), totalMs, sllFailures));
+
+		buf.append(String.format("%-28s %10s %9s %12s %10s %6s %6s\n",
+		                         "rule", "calls", "decisions", "predictions", "pred ms", "LL", "ambig"));
+		for (RuleStats r : getRuleStats()) {
+			buf.append(String.format("%-28s %10d %9d %12d %10.2f %6d %6d\n",
+			                         r.rule, r.invocations, r.decisions, r.decisionInvocations,
+			                         r.timeInPrediction/1e6, r.LL_Fallback, r.ambiguities));
+		}
+
+		buf.append(String.format("\n%-5s %-28s %10s %10s %8s %8s %6s %8s %6s %6s\n",
+		                         "dec", "rule", "calls", "pred ms", "SLL avg", "SLL max",
+		                         "LL", "LL max", "ambig", "errors"));
+		for (DecisionStats d : getDecisionStats()) {
+			buf.append(String.format("%-5d %-28s %10d %10.2f %8.2f %8d %6d %8d %6d %6d\n",
+			                         d.decision, d.rule, d.invocations, d.timeInPrediction/1e6,
+			                         d.SLL_TotalLook/(double)d.invocations, d.SLL_MaxLook,
+			                         d.LL_Fallback, d.LL_MaxLook, d.ambiguities, d.errors));
+		}
+		return buf.toString();
+	}
+}
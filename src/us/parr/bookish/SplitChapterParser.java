@@ -0,0 +1,249 @@
+package us.parr.bookish;
+
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.WritableToken;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+import us.parr.bookish.model.entity.ChapterDef;
+import us.parr.bookish.model.entity.EntityDef;
+import us.parr.bookish.parse.BookishLexer;
+import us.parr.bookish.parse.BookishParser;
+import us.parr.lib.collections.MutableInt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static us.parr.bookish.ChapterReparser.SectionState;
+import static us.parr.bookish.translate.Translator.parseXMLAttrs;
+import static us.parr.lib.ParrtStrings.stripQuotes;
+
+/** Parse one big chapter on several threads by cutting it at its ##
+ *  sections. We parse the chapter head (title, abstract, intro) first,
+ *  then each section on its own from the section rule with its own
+ *  parser and token stream, and hang the section trees off the head's
+ *  chapter tree in order.
+ *
+ *  A section's numbers (section, figure, sidenote, code snippet) depend on
+ *  counters the sections before it leave behind, so scanStates() works
+ *  out each section's starting counters from the tokens alone. After the
+ *  parse we check each section ended with the counters the next one
+ *  assumed; if not, or on any syntax error, we parse the whole chapter
+ *  again on one thread so the result (and error messages) are exactly
+ *  what a normal parse gives.
+ */
+public class SplitChapterParser {
+	/** How many split parses had to be redone in one piece */
+	public static final AtomicInteger fallbacks = new AtomicInteger();
+
+	/** Parse tokens as a whole document like Tool.parseChapter(); the
+	 *  parser returned has the entities and code blocks for the whole
+	 *  chapter and the counters as they end up. llFallbacks and profile
+	 *  go to Tool.parse().
+	 */
+	public static Pair<BookishParser.DocumentContext,BookishParser> parse(CommonTokenStream tokens,
+	                                                                      String inputFilename,
+	                                                                      int chapNumber,
+	                                                                      int numWorkers,
+	                                                                      AtomicInteger llFallbacks,
+	                                                                      ParserProfile profile)
+	{
+		tokens.fill();
+		List<Integer> starts = ChapterReparser.getSectionStarts(tokens);
+		if ( numWorkers>1 && starts.size()>1 ) {
+			Pair<BookishParser.DocumentContext,BookishParser> results =
+				parseSplit(tokens, starts, inputFilename, chapNumber, numWorkers, llFallbacks, profile);
+			if ( results!=null ) {
+				return results;
+			}
+			fallbacks.incrementAndGet();
+		}
+		Pair<ParserRuleContext,BookishParser> results =
+			Tool.parse(tokens, inputFilename, chapNumber, "document", llFallbacks, profile);
+		results.b.printMessages();
+		return new Pair<>((BookishParser.DocumentContext)results.a, results.b);
+	}
+
+	protected static Pair<BookishParser.DocumentContext,BookishParser> parseSplit(CommonTokenStream tokens,
+	                                                                            List<Integer> starts,
+	                                                                            String inputFilename,
+	                                                                            int chapNumber,
+	                                                                            int numWorkers,
+	                                                                            AtomicInteger llFallbacks,
+	                                                                            ParserProfile profile)
+	{
+		List<Token> all = tokens.getTokens();
+		Pair<ParserRuleContext,BookishParser> head =
+			parsePiece(all.subList(0, starts.get(0)), inputFilename, chapNumber, "document", null, null,
+			           llFallbacks, profile);
+		BookishParser parser = head.b;
+		BookishParser.DocumentContext doc = (BookishParser.DocumentContext)head.a;
+		if ( parser.getNumberOfSyntaxErrors()>0 ) {
+			return null;
+		}
+		List<SectionState> states = scanStates(all, starts, new SectionState(parser));
+
+		List<Pair<ParserRuleContext,BookishParser>> sections = new ArrayList<>();
+		ForkJoinPool pool = new ForkJoinPool(Math.min(numWorkers, starts.size()));
+		try {
+			List<ForkJoinTask<Pair<ParserRuleContext,BookishParser>>> tasks = new ArrayList<>();
+			for (int i = 0; i<starts.size(); i++) {
+				int stop = i<starts.size()-1 ? starts.get(i+1) : all.size()-1; // last gets EOF from ListTokenSource
+				List<Token> piece = all.subList(starts.get(i), stop);
+				SectionState in = states.get(i);
+				tasks.add(pool.submit(() -> parsePiece(piece, inputFilename, chapNumber, "section", in, parser.currentChap,
+				                                       llFallbacks, profile)));
+			}
+			for (ForkJoinTask<Pair<ParserRuleContext,BookishParser>> t : tasks) {
+				sections.add(t.get());
+			}
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException ee) {
+			return null;
+		}
+		finally {
+			pool.shutdown();
+			// pieces numbered their tokens from 0; put back the real indexes
+			for (int i = 0; i<all.size(); i++) {
+				((WritableToken)all.get(i)).setTokenIndex(i);
+			}
+		}
+
+		for (int i = 0; i<sections.size(); i++) {
+			BookishParser p = sections.get(i).b;
+			boolean last = i==sections.size()-1;
+			// last section can leave document's trailing blank line
+			boolean done = p.getInputStream().LA(1)==Token.EOF ||
+				(last && p.getInputStream().LA(1)==BookishLexer.BLANK_LINE && p.getInputStream().LA(2)==Token.EOF);
+			if ( p.getNumberOfSyntaxErrors()>0 || !done ||
+				 (!last && !new SectionState(p).equals(states.get(i+1))) )
+			{
+				return null;
+			}
+		}
+
+		// hang sections off the head's chapter, replacing head's EOF with ours
+		BookishParser.ChapterContext chapter = doc.chapter();
+		for (Pair<ParserRuleContext,BookishParser> s : sections) {
+			chapter.addChild(s.a);
+			s.a.parent = chapter;
+		}
+		chapter.stop = sections.get(sections.size()-1).a.stop;
+		while ( doc.getChild(doc.getChildCount()-1) instanceof TerminalNode ) {
+			doc.removeLastChild();
+		}
+		for (int i = chapter.stop.getTokenIndex()+1; i<all.size(); i++) {
+			TerminalNodeImpl t = new TerminalNodeImpl(all.get(i));
+			doc.addChild(t);
+			t.parent = doc;
+		}
+		doc.stop = all.get(all.size()-1);
+
+		// the head's parser now looks like it parsed the whole chapter
+		parser.printMessages(); // in document order, now that we know we keep the pieces
+		for (Pair<ParserRuleContext,BookishParser> s : sections) {
+			s.b.printMessages();
+			for (EntityDef def : s.b.entities.values()) {
+				if ( parser.entities.containsKey(def.label) ) {
+					System.err.printf("line %d: redefinition of label %s\n",
+					                  def.getStartToken().getLine(), def.label);
+				}
+				parser.entities.put(def.label, def);
+			}
+			parser.codeBlocks.addAll(s.b.codeBlocks);
+		}
+		new SectionState(sections.get(sections.size()-1).b).restore(parser);
+		return new Pair<>(doc, parser);
+	}
+
+	/** Parse tokens from startRule in a stream of their own, quietly; the
+	 *  caller checks for errors and falls back on a normal parse.
+	 */
+	protected static Pair<ParserRuleContext,BookishParser> parsePiece(List<Token> piece,
+	                                                                  String inputFilename,
+	                                                                  int chapNumber,
+	                                                                  String startRule,
+	                                                                  SectionState in,
+	                                                                  ChapterDef chap,
+	                                                                  AtomicInteger llFallbacks,
+	                                                                  ParserProfile profile)
+	{
+		CommonTokenStream stream = new CommonTokenStream(new ListTokenSource(piece, inputFilename));
+		return Tool.parse(() -> {
+			stream.seek(0);
+			BookishParser p = new BookishParser(stream, inputFilename, chapNumber);
+			p.removeErrorListeners();
+			if ( in!=null ) {
+				in.restore(p);
+				p.currentChap = chap;
+			}
+			return p;
+		}, startRule, llFallbacks, profile);
+	}
+
+	/** Counters as each section starts, working forward from the head's
+	 *  by mimicking the grammar actions that bump them. parseSplit()
+	 *  checks the results so a mistake here costs time, not correctness.
+	 */
+	public static List<SectionState> scanStates(List<Token> tokens, List<Integer> starts, SectionState first) {
+		BookishParser counters = new BookishParser(null);
+		first.restore(counters);
+		List<SectionState> states = new ArrayList<>();
+		int next = 0;
+		for (int i = starts.get(0); i<tokens.size(); i++) {
+			if ( next<starts.size() && i==starts.get(next) ) {
+				states.add(new SectionState(counters));
+				next++;
+			}
+			Token t = tokens.get(i);
+			int following = i+1<tokens.size() ? tokens.get(i+1).getType() : Token.EOF;
+			switch ( t.getType() ) {
+				case BookishLexer.SECTION :
+					counters.secCounter++;
+					break;
+				case BookishLexer.FIGURE :
+				case BookishLexer.SIDEFIG :
+					counters.figCounter++;
+					break;
+				case BookishLexer.SITE :
+				case BookishLexer.CITATION :
+					counters.defCounter++;
+					break;
+				case BookishLexer.SIDEQUOTE :
+				case BookishLexer.SIDENOTE :
+					if ( following==BookishLexer.REF ) counters.defCounter++;
+					break;
+				case BookishLexer.PYFIG :
+					countCode(counters, parseXMLAttrs(getTagArgs(t.getText(), "<pyfig")).get("label"));
+					break;
+				case BookishLexer.PYEVAL :
+					countCode(counters, parseXMLAttrs(getTagArgs(t.getText(), "<pyeval")).get("label"));
+					break;
+				case BookishLexer.INLINE_PYEVAL :
+					countCode(counters, following==BookishLexer.REF ? stripQuotes(tokens.get(i+1).getText()) : null);
+					break;
+			}
+		}
+		return states;
+	}
+
+	protected static void countCode(BookishParser counters, String label) {
+		counters.codeCounters.putIfAbsent(label, new MutableInt(1));
+		counters.codeCounters.get(label).v++;
+	}
+
+	protected static String getTagArgs(String tag, String start) {
+		return tag.substring(start.length(), tag.length()-1); // strip '>'
+	}
+}
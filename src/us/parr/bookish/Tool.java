@@ -1,10 +1,14 @@
 package us.parr.bookish;
 
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.atn.PredictionMode;
 import org.antlr.v4.runtime.misc.MultiMap;
 import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.STGroup;
@@ -17,7 +21,13 @@ import us.parr.bookish.model.entity.ExecutableCodeDef;
 import us.parr.bookish.model.entity.PyFigDef;
 import us.parr.bookish.parse.BookishLexer;
 import us.parr.bookish.parse.BookishParser;
+import us.parr.bookish.translate.EquationStore;
+import us.parr.bookish.translate.JavaMathBackend;
 import us.parr.bookish.translate.ModelConverter;
+import us.parr.bookish.translate.SharedEquationCache;
+import us.parr.bookish.translate.Tex2SVG;
+import us.parr.bookish.translate.Tex2SVGPool;
+import us.parr.bookish.translate.TexFormats;
 import us.parr.bookish.translate.Translator;
 import us.parr.lib.ParrtCollections;
 import us.parr.lib.ParrtIO;
@@ -31,15 +41,24 @@ import javax.json.JsonValue;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static us.parr.lib.ParrtIO.basename;
 import static us.parr.lib.ParrtIO.stripFileExtension;
@@ -50,6 +69,7 @@ import static us.parr.lib.ParrtSys.execCommandLine;
 /**
  * java us.parr.bookish.Tool -target latex -o /tmp/mybook book.json
  * java us.parr.bookish.Tool -target html -o /tmp/mybook book.json
+ * java us.parr.bookish.Tool -target html -o /tmp/mybook -watch book.json
  *
  * Assumes images/ subdir (and these are copied to target dir).
  *
@@ -68,12 +88,77 @@ public class Tool {
 		new HashSet<String>() {{
 			add("-o");          // output dir
 			add("-target");     // html or latex
+			add("-j");          // number of equation typesetting workers; default is num cores
+			add("-warm-tex");   // keep xelatex loaded with eqn preamble, waiting on a pipe (across -watch builds too)
+			add("-tight-tex");  // size xelatex pages to each equation; no pdfcrop
+			add("-raw-svg");    // write equation svg as latex tools make it; don't optimize
+			add("-no-tex-format"); // load eqn preamble every latex run rather than from a dumped format
+			add("-profile-parser"); // write parser decision stats to parser-profile.{json,txt} in build dir
+			add("-embed-eqns"); // svg, data, or sprite: put equation svg in the html (or one file per chapter)
+			add("-embed-max");  // only embed equation svg files up to this many bytes; default 4096
+			add("-eqn-backend");// xelatex (default), dvisvgm, or java; overrides "eqnBackend" in json
+			add("-math");       // svg (default) or mathml: how the html target shows equations
+			add("-eqn-keep");   // keep this many unused equation svg files for undo; default 200, -1 keeps all
+			add("-eqn-cache");  // dir of equation cache shared by all books and builds on this machine
+			add("-watch");      // after building, rebuild whenever the json or a chapter changes, reparsing
+			                    // only edited ## sections (a ### edit reparses its whole ## section)
 		}};
 
+	/** Options that take no value */
+	public static final Set<String> flagOptions =
+		new HashSet<String>() {{
+			add("-warm-tex");
+			add("-tight-tex");
+			add("-raw-svg");
+			add("-no-tex-format");
+			add("-profile-parser");
+			add("-watch");
+		}};
+
+	/** How many parses this build SLL couldn't do and had to redo in full LL mode */
+	public final AtomicInteger llFallbacks = new AtomicInteger();
+
+	/** Decision stats for every parse if -profile-parser, else null */
+	public ParserProfile profile;
+
 	public String inputDir;
 	public String dataDir;
 	public String outputDir;
 
+	/** Shared by all Translators so equations typeset in parallel */
+	public Tex2SVGPool tex2svg;
+
+	/** Typeset equations and their metrics, loaded once per run */
+	public EquationStore eqnStore;
+
+	/** -eqn-cache; null means none */
+	public SharedEquationCache eqnCache;
+
+	/** null (link to images/), "svg" (inline svg element), "data" (data URI),
+	 *  or "sprite" (one svg of symbols per chapter)
+	 */
+	public String embedEqns;
+	public int embedEqnMaxBytes = 4096;
+
+	/** -math mathml: html gets <math> for every equation MathMLWriter can
+	 *  translate; the rest are still typeset to svg.
+	 */
+	public boolean mathml = false;
+
+	/** Threads for typesetting equations and parsing chapters (-j) */
+	public int numWorkers = Runtime.getRuntime().availableProcessors();
+
+	/** How many equation files no longer in the book to keep; see EquationStore.collect() */
+	public int eqnKeep = 200;
+
+	/** -watch: each chapter's last parse so a rebuild reparses only the
+	 *  sections that changed; null means parse chapters from scratch.
+	 */
+	public Map<String,ChapterReparser> reparsers;
+
+	/** How often -watch looks for changed files */
+	public static final int WATCH_POLL_MS = 250;
+
 	public static void main(String[] args) throws Exception {
 		Tool tool = new Tool();
 		tool.process(args);
@@ -87,29 +172,64 @@ public class Tool {
 		inputDir = new File(metadataFilename).getParent();
 		outputDir = option("o");
 
-		String outFilename;
 		Target target = (Target)optionO("target");
 
 		ParrtIO.mkdir(outputDir+"/images");
 		String snippetsDir = getBuildDir(metadataFilename)+"/snippets";
 		ParrtIO.mkdir(snippetsDir);
 
-		if ( metadataFilename.endsWith(".md") ) { // just one file (legacy stuff)
-			String inputFilename = metadataFilename;
-			Book book = new Book(this, "","");
-			book.entities = new HashMap<>();
-			Translator trans = new Translator(book, book.entities, target, outputDir);
-			if ( target==Target.HTML ) {
-				outFilename = "index.html";
+		if ( option("j")!=null ) {
+			numWorkers = Integer.parseInt(option("j"));
+		}
+		if ( optionO("profile-parser")!=null ) {
+			profile = new ParserProfile();
+		}
+		if ( option("eqn-cache")!=null ) {
+			eqnCache = new SharedEquationCache(option("eqn-cache"));
+		}
+		embedEqns = option("embed-eqns");
+		if ( embedEqns!=null && !embedEqns.equals("svg") && !embedEqns.equals("data") && !embedEqns.equals("sprite") ) {
+			System.err.printf("-embed-eqns must be svg, data, or sprite not '%s'; linking to images\n", embedEqns);
+			embedEqns = null;
+		}
+		if ( option("embed-max")!=null ) {
+			embedEqnMaxBytes = Integer.parseInt(option("embed-max"));
+		}
+		if ( option("eqn-keep")!=null ) {
+			eqnKeep = Integer.parseInt(option("eqn-keep"));
+		}
+		if ( option("math")!=null ) {
+			mathml = option("math").equals("mathml");
+			if ( !mathml && !option("math").equals("svg") ) {
+				System.err.printf("-math must be svg or mathml not '%s'; using svg\n", option("math"));
 			}
-			else {
-				outFilename = stripFileExtension(basename(inputFilename))+".tex";
+		}
+
+		if ( optionO("watch")!=null ) {
+			reparsers = new ConcurrentHashMap<>();
+		}
+
+		try {
+			build(metadataFilename, target);
+			if ( reparsers!=null ) {
+				watch(metadataFilename, target);
 			}
-			Pair<Document, String> results = legacy_translate(trans, inputDir, basename(inputFilename));
-			String output = results.b;
-			ParrtIO.save(outputDir+"/"+outFilename, output);
-			//System.out.println("Wrote "+outputDir+"/"+outFilename);
-			copyImages(book, inputDir, outputDir);
+		}
+		finally {
+			if ( tex2svg!=null ) {
+				tex2svg.shutdown(); // even if the build blows up, so no worker or scratch dir is left
+			}
+		}
+	}
+
+	/** Parse, translate, and write the book (or single .md file) once */
+	public void build(String metadataFilename, Target target) throws Exception {
+		llFallbacks.set(0);
+		startTex2SVG(metadataFilename);
+		eqnStore = newEquationStore();
+
+		if ( metadataFilename.endsWith(".md") ) { // just one file (legacy stuff)
+			buildSingleFile(metadataFilename, metadataFilename, target);
 			return;
 		}
 
@@ -117,6 +237,30 @@ public class Tool {
 		JsonReader jsonReader = Json.createReader(new FileReader(metadataFilename));
 		JsonObject metadata = jsonReader.readObject();
 //		System.out.println(metadata);
+		if ( option("eqn-backend")==null && metadata.containsKey("eqnBackend") ) {
+			setEqnBackend(metadata.getString("eqnBackend"));
+		}
+
+		if ( !metadata.containsKey("chapters") && metadata.containsKey("files") ) { // {"files":["doc.md"]} is just doc.md
+			JsonArray files = metadata.getJsonArray("files");
+			if ( files.size()!=1 ) {
+				System.err.printf("%s: \"files\" can list only one file; use \"chapters\" for a book\n", metadataFilename);
+				return;
+			}
+			buildSingleFile(metadataFilename, new File(inputDir, files.getString(0)).getPath(), target);
+			return;
+		}
+
+		JsonArray markdownFilenames = metadata.getJsonArray("chapters");
+		List<String> chapterFilenames = new ArrayList<>();
+		for (JsonValue f : markdownFilenames) {
+			chapterFilenames.add(stripQuotes(f.toString()));
+		}
+
+		// get latex going on every equation while we parse, run python, translate
+		if ( target==Target.HTML ) {
+			prescanEquations(inputDir, chapterFilenames);
+		}
 
 		Book book = createBook(target, metadata);
 
@@ -124,20 +268,23 @@ public class Tool {
 		List<BookishParser.DocumentContext> trees = new ArrayList<>();
 		List<Map<String, EntityDef>> entities = new ArrayList<>();
 		List<List<ExecutableCodeDef>> codeBlocks = new ArrayList<>();
-		JsonArray markdownFilenames = metadata.getJsonArray("chapters");
-		for (JsonValue f : markdownFilenames) {
-			String fname = stripQuotes(f.toString());
-			book.filenames.add(fname);
-			Pair<BookishParser.DocumentContext, BookishParser> results =
-				parseChapter(inputDir, fname, book.chapCounter);
-			BookishParser.DocumentContext tree = results.a;
-			BookishParser parser = results.b;
+		List<Pair<BookishParser.DocumentContext, BookishParser>> parsed =
+			parseChapters(inputDir, chapterFilenames, book.chapCounter, numWorkers);
+		for (int i = 0; i<chapterFilenames.size(); i++) {
+			book.filenames.add(chapterFilenames.get(i));
+			BookishParser.DocumentContext tree = parsed.get(i).a;
+			BookishParser parser = parsed.get(i).b;
 			book.chapCounter++;
 			trees.add(tree);
 			entities.add(parser.entities);
 			codeBlocks.add(parser.codeBlocks);
 		}
 
+		if ( llFallbacks.get()>0 ) {
+			System.out.printf("%d parses fell back from SLL to full LL\n", llFallbacks.get());
+		}
+		saveParserProfile(getBuildDir(metadataFilename));
+
 		executeCodeSnippets(book, getBuildDir(metadataFilename), codeBlocks);
 
 		// now walk all trees and translate
@@ -145,6 +292,168 @@ public class Tool {
 
 		copyImages(book, inputDir, outputDir);
 		execCommandLine(String.format("cp -r %s/css %s", inputDir, outputDir));
+		finishEquations(target);
+	}
+
+	/** Translate one markdown file to a single html or latex document */
+	public void buildSingleFile(String metadataFilename, String inputFilename, Target target) throws Exception {
+		String outFilename;
+		Book book = new Book(this, "","");
+		book.entities = new HashMap<>();
+		Translator trans = new Translator(book, book.entities, target, outputDir);
+		if ( target==Target.HTML ) {
+			outFilename = "index.html";
+		}
+		else {
+			outFilename = stripFileExtension(basename(inputFilename))+".tex";
+		}
+		if ( target==Target.HTML ) {
+			prescanEquations(inputDir, Collections.singletonList(basename(inputFilename)));
+		}
+		Pair<Document, String> results = legacy_translate(trans, inputDir, basename(inputFilename));
+		saveParserProfile(getBuildDir(metadataFilename));
+		String output = results.b;
+		ParrtIO.save(outputDir+"/"+outFilename, output);
+		//System.out.println("Wrote "+outputDir+"/"+outFilename);
+		copyImages(book, inputDir, outputDir);
+		finishEquations(target);
+	}
+
+	/** Rebuild whenever the metadata file or a .md file next to it changes,
+	 *  until killed. A failed build just waits for the next change.
+	 */
+	public void watch(String metadataFilename, Target target) throws InterruptedException {
+		System.out.println("Watching "+new File(metadataFilename).getAbsoluteFile().getParent()+"; ^C to stop");
+		// ^C skips process()'s finally; still kill warm xelatex and toss scratch dirs
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> tex2svg.shutdown(), "tex2svg-shutdown"));
+		Map<String,Long> lastModified = getModTimes(metadataFilename);
+		while ( true ) {
+			Thread.sleep(WATCH_POLL_MS);
+			Map<String,Long> modified = getModTimes(metadataFilename);
+			if ( modified.equals(lastModified) ) {
+				continue;
+			}
+			lastModified = modified;
+			long start = System.nanoTime();
+			try {
+				build(metadataFilename, target);
+				System.out.printf("Rebuilt in %d ms\n", (System.nanoTime()-start)/1_000_000);
+			}
+			catch (Exception e) {
+				System.err.println("build failed: "+e);
+				e.printStackTrace(System.err);
+			}
+		}
+	}
+
+	/** Last modified time of the metadata file and each .md file in its dir */
+	public static Map<String,Long> getModTimes(String metadataFilename) {
+		File metadata = new File(metadataFilename).getAbsoluteFile();
+		Map<String,Long> modified = new HashMap<>();
+		modified.put(metadata.getPath(), metadata.lastModified());
+		File[] files = metadata.getParentFile().listFiles((dir, name) -> name.endsWith(".md"));
+		if ( files!=null ) {
+			for (File f : files) {
+				modified.put(f.getPath(), f.lastModified());
+			}
+		}
+		return modified;
+	}
+
+	/** Set tex2svg to a typesetting pool set up from the options. With
+	 *  -watch, every build gets the same pool so its workers, and any warm
+	 *  xelatex, stay loaded from one build to the next. Otherwise it's a
+	 *  new pool, shutting down the last one if a failed build left it running.
+	 */
+	public void startTex2SVG(String metadataFilename) {
+		if ( tex2svg==null || reparsers==null ) {
+			if ( tex2svg!=null ) {
+				tex2svg.shutdown();
+			}
+			tex2svg = new Tex2SVGPool(outputDir, getBuildDir(metadataFilename)+"/tex2svg", numWorkers);
+			tex2svg.warm = optionO("warm-tex")!=null;
+			tex2svg.tight = optionO("tight-tex")!=null;
+			if ( optionO("no-tex-format")==null ) {
+				tex2svg.formats = new TexFormats(getBuildDir(metadataFilename)+"/tex-formats");
+			}
+			tex2svg.cache = eqnCache;
+		}
+		tex2svg.backend = Tex2SVG.backends.keySet().iterator().next(); // json's eqnBackend may be gone now
+		if ( option("eqn-backend")!=null ) {
+			setEqnBackend(option("eqn-backend"));
+		}
+	}
+
+	/** Equation store for outputDir, loaded from its manifest, set up like tex2svg */
+	public EquationStore newEquationStore() {
+		EquationStore store = new EquationStore(outputDir);
+		store.tight = tex2svg.tight;
+		store.backend = tex2svg.backend;
+		if ( optionO("raw-svg")!=null ) {
+			store.svgOptimizer = null;
+		}
+		store.shared = eqnCache;
+		return store;
+	}
+
+	public void saveParserProfile(String buildDir) {
+		if ( profile==null ) {
+			return;
+		}
+		try {
+			profile.save(buildDir);
+			System.out.println("Wrote parser profile to "+buildDir+"/parser-profile.{json,txt}");
+		}
+		catch (IOException ioe) {
+			System.err.println("can't write parser profile: "+ioe.getMessage());
+		}
+	}
+
+	/** Stop typesetting workers (or, with -watch, wait for them to go
+	 *  idle), sweep equation files this build didn't use, save the equation
+	 *  manifest, and say how much svg optimizing saved. Only html builds
+	 *  look equations up in the store so only they sweep; a latex build
+	 *  into the same -o dir would otherwise toss html's svg.
+	 */
+	public void finishEquations(Target target) {
+		if ( reparsers!=null ) {
+			tex2svg.finishBuild();
+		}
+		else {
+			tex2svg.shutdown();
+		}
+		if ( target==Target.HTML && eqnKeep>=0 ) {
+			System.out.println(eqnStore.collect(eqnKeep));
+		}
+		eqnStore.save();
+		if ( eqnStore.svgOptimizer!=null && eqnStore.svgOptimizer.files.get()>0 ) {
+			System.out.println(eqnStore.svgOptimizer.getReport());
+		}
+		if ( eqnStore.shared!=null ) {
+			System.out.println(eqnStore.shared.getReport());
+		}
+		if ( tex2svg.backend.equals("java") ) {
+			System.out.println(JavaMathBackend.getReport());
+		}
+	}
+
+	/** Run just the lexer over each chapter and queue every equation not
+	 *  in the store with the typesetting pool. Doesn't wait; the
+	 *  Translators pick up the same futures when they get to the equations.
+	 */
+	public void prescanEquations(String inputDir, List<String> filenames) throws IOException {
+		List<Pair<String,Tex2SVG.LatexType>> equations = new ArrayList<>();
+		for (String fname : filenames) {
+			CharStream input = CharStreams.fromFileName(inputDir+"/"+fname);
+			equations.addAll(Translator.getEquations(new BookishLexer(input)));
+		}
+		if ( mathml ) {
+			equations = Translator.getNonMathMLEquations(equations);
+		}
+		Pair<List<Pair<String,Tex2SVG.LatexType>>,List<Pair<String,Tex2SVG.LatexType>>> todo =
+			Translator.getUncachedEquations(eqnStore, equations);
+		tex2svg.submitBatch(todo.a, Translator.INLINE_EQN_FONT_SIZE);
+		tex2svg.submitBatch(todo.b, Translator.BLOCK_EQN_FONT_SIZE);
 	}
 
 	public Book createBook(Target target, JsonObject metadata) throws Exception {
@@ -215,6 +524,17 @@ public class Tool {
 		ParrtIO.save(outputDir+"/"+mainOutFilename, bookTemplate.render());
 	}
 
+	public void setEqnBackend(String name) {
+		if ( !Tex2SVG.backends.containsKey(name) ) {
+			System.err.printf("Unknown equation backend '%s'; try one of %s\n", name, Tex2SVG.backends.keySet());
+			return;
+		}
+		tex2svg.backend = name;
+		if ( eqnStore!=null ) {
+			eqnStore.backend = name;
+		}
+	}
+
 	public String getBuildDir(String metadataFilename) {
 		return BUILD_DIR+"-"+ParrtIO.stripFileExtension(ParrtIO.basename(metadataFilename));
 	}
@@ -367,9 +687,7 @@ public class Tool {
 		CharStream input = CharStreams.fromString(markdown);
 		BookishLexer lexer = new BookishLexer(input);
 		CommonTokenStream tokens = new CommonTokenStream(lexer);
-		BookishParser parser = new BookishParser(tokens,null, 0);
-		Method startMethod = BookishParser.class.getMethod(startRule, (Class[])null);
-		ParseTree doctree = (ParseTree)startMethod.invoke(parser, (Object[])null);
+		ParseTree doctree = parse(tokens, null, 0, startRule).a;
 
 		OutputModelObject omo = trans.visit(doctree); // get single chapter
 
@@ -378,17 +696,164 @@ public class Tool {
 		return outputST.render();
 	}
 
+	/** Parse chapters on a fork-join pool, one task per chapter. Each
+	 *  chapter gets its own lexer and parser so they share nothing but
+	 *  ANTLR's thread-safe DFA cache. Chapter numbers count up from
+	 *  firstChapNumber in list order and results come back in that order,
+	 *  so the build doesn't depend on which chapter finishes first.
+	 */
+	public List<Pair<BookishParser.DocumentContext,BookishParser>> parseChapters(String inputDir,
+	                                                                              List<String> filenames,
+	                                                                              int firstChapNumber,
+	                                                                              int numWorkers)
+		throws IOException
+	{
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(numWorkers, filenames.size())));
+		try {
+			List<ForkJoinTask<Pair<BookishParser.DocumentContext,BookishParser>>> tasks = new ArrayList<>();
+			for (int i = 0; i<filenames.size(); i++) {
+				String fname = filenames.get(i);
+				int chapNumber = firstChapNumber+i;
+				tasks.add(pool.submit(() -> parseChapter(inputDir, fname, chapNumber)));
+			}
+			List<Pair<BookishParser.DocumentContext,BookishParser>> results = new ArrayList<>();
+			for (ForkJoinTask<Pair<BookishParser.DocumentContext,BookishParser>> t : tasks) {
+				try {
+					results.add(t.get());
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted parsing chapters", ie);
+				}
+				catch (ExecutionException ee) {
+					Throwable cause = ee.getCause();
+					if ( cause instanceof IOException ) throw (IOException)cause;
+					if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+					if ( cause instanceof Error ) throw (Error)cause;
+					throw new IOException(cause);
+				}
+			}
+			return results;
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
 	public Pair<BookishParser.DocumentContext,BookishParser> parseChapter(String inputDir,
 	                                                                      String inputFilename,
 	                                                                      int chapNumber)
 		throws IOException
 	{
+		if ( reparsers!=null ) {
+			String text = new String(Files.readAllBytes(Paths.get(inputDir, inputFilename)), StandardCharsets.UTF_8);
+			ChapterReparser r = reparsers.compute(inputFilename, (f, old) ->
+				old!=null && old.chapNumber==chapNumber ? old : newReparser(f, chapNumber));
+			BookishParser.DocumentContext tree = r.parse(text);
+			return new Pair<>(tree, r.parser);
+		}
 		CharStream input = CharStreams.fromFileName(inputDir+"/"+inputFilename);
 		BookishLexer lexer = new BookishLexer(input);
 		CommonTokenStream tokens = new CommonTokenStream(lexer);
-		BookishParser parser = new BookishParser(tokens, inputFilename, chapNumber);
-		BookishParser.DocumentContext doctree = parser.document();
-		return new Pair<>(doctree, parser);
+		Pair<ParserRuleContext,BookishParser> results =
+			parse(tokens, inputFilename, chapNumber, "document", llFallbacks, profile);
+		results.b.printMessages();
+		return new Pair<>((BookishParser.DocumentContext)results.a, results.b);
+	}
+
+	public ChapterReparser newReparser(String inputFilename, int chapNumber) {
+		ChapterReparser r = new ChapterReparser(inputFilename, chapNumber);
+		r.llFallbacks = llFallbacks;
+		r.profile = profile;
+		return r;
+	}
+
+	/** Parse tokens from startRule the fast way first: SLL prediction,
+	 *  bailing out at the first syntax error. SLL is a lot cheaper than
+	 *  full LL and almost always right; when it fails (a real syntax error
+	 *  or a rare input SLL can't handle), rewind and parse again in LL mode
+	 *  with normal error reporting and recovery. That second parse gets a
+	 *  fresh parser so entities, counters, and code blocks from the failed
+	 *  attempt don't leak into the result.
+	 *
+	 *  The parser returned still holds what its actions had to say (Def
+	 *  lines, bad labels); call printMessages() on it once the parse is
+	 *  kept. llFallbacks, if not null, counts LL reparses; profile, if not
+	 *  null, gets decision stats for every attempt.
+	 */
+	public static Pair<ParserRuleContext,BookishParser> parse(CommonTokenStream tokens,
+	                                                          String inputFilename,
+	                                                          int chapNumber,
+	                                                          String startRule,
+	                                                          AtomicInteger llFallbacks,
+	                                                          ParserProfile profile)
+	{
+		return parse(() -> {
+			tokens.seek(0);
+			return new BookishParser(tokens, inputFilename, chapNumber);
+		}, startRule, llFallbacks, profile);
+	}
+
+	/** Parse without counting fallbacks or profiling */
+	public static Pair<ParserRuleContext,BookishParser> parse(CommonTokenStream tokens,
+	                                                          String inputFilename,
+	                                                          int chapNumber,
+	                                                          String startRule)
+	{
+		return parse(tokens, inputFilename, chapNumber, startRule, null, null);
+	}
+
+	/** Same but newParser makes each attempt's parser, positioned at the
+	 *  first token to parse and with any state startRule needs.
+	 */
+	public static <P extends BookishParser> Pair<ParserRuleContext,P> parse(Supplier<P> newParser,
+	                                                                       String startRule,
+	                                                                       AtomicInteger llFallbacks,
+	                                                                       ParserProfile profile)
+	{
+		P parser = newParser.get();
+		parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+		parser.removeErrorListeners();
+		parser.setErrorHandler(new BailErrorStrategy());
+		try {
+			return new Pair<>(invokeStartRule(parser, startRule, profile), parser);
+		}
+		catch (ParseCancellationException pce) { // toss this attempt's parser, messages and all
+			if ( llFallbacks!=null ) {
+				llFallbacks.incrementAndGet();
+			}
+			parser = newParser.get();
+			parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+			return new Pair<>(invokeStartRule(parser, startRule, profile), parser);
+		}
+	}
+
+	/** Call startRule on parser; if profile isn't null, also profile the
+	 *  parse, whether it works or not, and add it to profile.
+	 */
+	protected static ParserRuleContext invokeStartRule(BookishParser parser, String startRule, ParserProfile profile) {
+		ParserProfile.RuleCounter counter = profile!=null ? profile.start(parser) : null;
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Method startMethod = BookishParser.class.getMethod(startRule, (Class[])null);
+			ParserRuleContext tree = (ParserRuleContext)startMethod.invoke(parser, (Object[])null);
+			failed = false;
+			return tree;
+		}
+		catch (InvocationTargetException ite) { // unwrap so callers see ParseCancellationException etc...
+			if ( ite.getCause() instanceof RuntimeException ) throw (RuntimeException)ite.getCause();
+			if ( ite.getCause() instanceof Error ) throw (Error)ite.getCause();
+			throw new IllegalStateException(ite.getCause());
+		}
+		catch (ReflectiveOperationException roe) {
+			throw new IllegalArgumentException("no parser rule "+startRule, roe);
+		}
+		finally {
+			if ( profile!=null ) {
+				profile.add(parser, counter, startRule, failed, System.nanoTime()-start);
+			}
+		}
 	}
 
 	// legacy single-doc translation
@@ -397,8 +862,15 @@ public class Tool {
 	                                              String inputFilename)
 		throws IOException
 	{
-		Pair<BookishParser.DocumentContext,BookishParser> results =
-			parseChapter(inputDir, inputFilename,0);
+		Pair<BookishParser.DocumentContext,BookishParser> results;
+		if ( reparsers!=null ) { // -watch: reparse only the sections that changed
+			results = parseChapter(inputDir, inputFilename, 0);
+		}
+		else { // one file can be big (like matrix-calculus.md) so parse its sections in parallel
+			CharStream input = CharStreams.fromFileName(inputDir+"/"+inputFilename);
+			CommonTokenStream tokens = new CommonTokenStream(new BookishLexer(input));
+			results = SplitChapterParser.parse(tokens, inputFilename, 0, numWorkers, llFallbacks, profile);
+		}
 		trans.entities = results.b.entities;
 		Document doc = (Document)trans.visit(results.a); // get single chapter
 		doc.chapter.connectContainerTree();
@@ -445,6 +917,10 @@ public class Tool {
 				System.err.printf("Unknown option '%s'\n", arg);
 				continue;
 			}
+			if ( flagOptions.contains(arg) ) {
+				options.put(arg.substring(1), true);
+				continue;
+			}
 			Object value = args[i];
 			if ( arg.equals("-target") ) {
 				switch ( (String)value ) {
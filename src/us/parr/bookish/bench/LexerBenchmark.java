@@ -0,0 +1,99 @@
+package us.parr.bookish.bench;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.Token;
+import us.parr.bookish.parse.BookishLexer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** Lex markdown files over and over and report tokens/sec and MB/sec
+ *  after warming up, plus which token types dominate so we can see what
+ *  the lexer spends its time producing.
+ *
+ *  java us.parr.bookish.bench.LexerBenchmark [file-or-dir...] [-n iterations]
+ *
+ *  Defaults to every .md file under examples/.
+ */
+public class LexerBenchmark {
+	public static void main(String[] args) throws Exception {
+		int n = 20;
+		List<Path> files = new ArrayList<>();
+		for (int i = 0; i<args.length; i++) {
+			if ( args[i].equals("-n") ) {
+				n = Integer.parseInt(args[++i]);
+			}
+			else {
+				files.addAll(getMarkdownFiles(Paths.get(args[i])));
+			}
+		}
+		if ( files.isEmpty() ) {
+			files = getMarkdownFiles(Paths.get("examples"));
+		}
+
+		List<CharStream> inputs = new ArrayList<>();
+		long chars = 0;
+		for (Path f : files) {
+			CharStream input = CharStreams.fromPath(f);
+			inputs.add(input);
+			chars += input.size();
+		}
+
+		int tokens = 0;
+		Map<String,Integer> counts = new TreeMap<>();
+		for (CharStream input : inputs) { // warm up the DFA and JIT and count token types
+			for (Token t : lex(input)) {
+				counts.merge(BookishLexer.VOCABULARY.getSymbolicName(t.getType()), 1, Integer::sum);
+				tokens++;
+			}
+		}
+		for (int i = 0; i<n/2; i++) {
+			for (CharStream input : inputs) {
+				lex(input);
+			}
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i<n; i++) {
+			for (CharStream input : inputs) {
+				lex(input);
+			}
+		}
+		double secs = (System.nanoTime()-start)/1e9;
+
+		System.out.printf("%d files, %d chars, %d tokens (%.1f chars/token)\n",
+		                  files.size(), chars, tokens, chars/(double)tokens);
+		System.out.printf("%.0f tokens/sec, %.2f MB/sec, %.2f ms per pass\n",
+		                  tokens*n/secs, chars*n/secs/1e6, secs*1000/n);
+		System.out.println(counts.entrySet().stream()
+			                   .sorted((a, b) -> b.getValue()-a.getValue())
+			                   .limit(10)
+			                   .map(e -> e.getKey()+" "+e.getValue())
+			                   .collect(Collectors.joining(", ")));
+	}
+
+	public static List<? extends Token> lex(CharStream input) {
+		input.seek(0);
+		BookishLexer lexer = new BookishLexer(input);
+		lexer.removeErrorListeners();
+		return lexer.getAllTokens();
+	}
+
+	public static List<Path> getMarkdownFiles(Path path) throws IOException {
+		if ( !Files.isDirectory(path) ) {
+			return java.util.Collections.singletonList(path);
+		}
+		try ( Stream<Path> files = Files.walk(path) ) {
+			return files.filter(f -> f.toString().endsWith(".md")).sorted().collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package us.parr.bookish.bench;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.xpath.XPath;
+import us.parr.bookish.Tool;
+import us.parr.bookish.parse.BookishLexer;
+import us.parr.bookish.parse.BookishParser;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Compare finding each paragraph's REFs the old way, an XPath //REF search
+ *  with a throwaway parser per paragraph, against reading the refs the
+ *  parser collects in paragraph_content, over the same parse trees.
+ *
+ *  java us.parr.bookish.bench.RefCollectionBenchmark [file-or-dir...] [-n iterations]
+ *
+ *  Defaults to the matrix-calculus example.
+ */
+public class RefCollectionBenchmark {
+	public static void main(String[] args) throws Exception {
+		int n = 50;
+		List<Path> files = new ArrayList<>();
+		for (int i = 0; i<args.length; i++) {
+			if ( args[i].equals("-n") ) {
+				n = Integer.parseInt(args[++i]);
+			}
+			else {
+				files.addAll(LexerBenchmark.getMarkdownFiles(Paths.get(args[i])));
+			}
+		}
+		if ( files.isEmpty() ) {
+			files.add(Paths.get("examples/matrix-calculus/matrix-calculus.md"));
+		}
+
+		List<BookishParser.Paragraph_contentContext> paragraphs = new ArrayList<>();
+		for (Path f : files) {
+			BookishLexer lexer = new BookishLexer(CharStreams.fromPath(f));
+			lexer.removeErrorListeners();
+			Pair<ParserRuleContext,BookishParser> results =
+				Tool.parse(new CommonTokenStream(lexer), f.toString(), 1, "document");
+			collectParagraphs(results.a, paragraphs);
+		}
+
+		int xpathRefs = 0, parserRefs = 0;
+		for (BookishParser.Paragraph_contentContext p : paragraphs) { // warm up and check they agree
+			xpathRefs += findRefsWithXPath(p);
+			parserRefs += p.refs.size();
+		}
+		System.out.printf("%d files, %d paragraphs, %d refs (%d by XPath)\n",
+		                  files.size(), paragraphs.size(), parserRefs, xpathRefs);
+
+		long start = System.nanoTime();
+		for (int i = 0; i<n; i++) {
+			for (BookishParser.Paragraph_contentContext p : paragraphs) {
+				findRefsWithXPath(p);
+			}
+		}
+		double xpathMs = (System.nanoTime()-start)/1e6/n;
+
+		start = System.nanoTime();
+		int sink = 0;
+		for (int i = 0; i<n; i++) {
+			for (BookishParser.Paragraph_contentContext p : paragraphs) {
+				sink += p.refs.size();
+			}
+		}
+		double parserMs = (System.nanoTime()-start)/1e6/n;
+
+		System.out.printf("XPath //REF per paragraph: %.3f ms per pass\n", xpathMs);
+		System.out.printf("refs from parse:           %.3f ms per pass (%d)\n", parserMs, sink/n);
+	}
+
+	/** What visitParagraph_content used to do */
+	public static int findRefsWithXPath(BookishParser.Paragraph_contentContext ctx) {
+		return XPath.findAll(ctx, "//REF", new BookishParser(null)).size();
+	}
+
+	public static void collectParagraphs(ParseTree t, List<BookishParser.Paragraph_contentContext> paragraphs) {
+		if ( t instanceof BookishParser.Paragraph_contentContext ) {
+			paragraphs.add((BookishParser.Paragraph_contentContext)t);
+		}
+		for (int i = 0; i<t.getChildCount(); i++) {
+			collectParagraphs(t.getChild(i), paragraphs);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package us.parr.bookish.bench;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import us.parr.bookish.Tool;
+import us.parr.bookish.parse.BookishLexer;
+import us.parr.bookish.translate.Translator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Time the <pyeval ...> and <pyfig ...> attribute scan on its own and
+ *  then whole-chapter parses of snippet-heavy chapters, where that scan
+ *  runs once per tag from the grammar actions.
+ *
+ *  java us.parr.bookish.bench.SnippetBenchmark [file-or-dir...] [-n iterations] [-tags n]
+ *
+ *  With no files, makes up a chapter with -tags snippets (default 2000)
+ *  since the examples don't have many.
+ */
+public class SnippetBenchmark {
+	public static void main(String[] args) throws Exception {
+		int n = 20;
+		int numTags = 2000;
+		List<Path> files = new ArrayList<>();
+		for (int i = 0; i<args.length; i++) {
+			if ( args[i].equals("-n") ) {
+				n = Integer.parseInt(args[++i]);
+			}
+			else if ( args[i].equals("-tags") ) {
+				numTags = Integer.parseInt(args[++i]);
+			}
+			else {
+				files.addAll(LexerBenchmark.getMarkdownFiles(Paths.get(args[i])));
+			}
+		}
+
+		List<String> texts = new ArrayList<>();
+		for (Path f : files) {
+			texts.add(CharStreams.fromPath(f).toString());
+		}
+		if ( texts.isEmpty() ) {
+			texts.add(makeChapter(numTags));
+		}
+
+		List<String> tagArgs = new ArrayList<>();
+		for (String text : texts) {
+			tagArgs.addAll(getTagArgs(text));
+		}
+		System.out.printf("%d chapters, %d pyeval/pyfig tags\n", texts.size(), tagArgs.size());
+
+		if ( !tagArgs.isEmpty() ) {
+			int reps = Math.max(1, 200_000/tagArgs.size());
+			for (int i = 0; i<reps; i++) { // warm up
+				for (String a : tagArgs) {
+					Translator.parseXMLAttrs(a);
+				}
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i<reps; i++) {
+				for (String a : tagArgs) {
+					Translator.parseXMLAttrs(a);
+				}
+			}
+			double secs = (System.nanoTime()-start)/1e9;
+			System.out.printf("attributes: %.0f tags/sec\n", reps*tagArgs.size()/secs);
+		}
+
+		for (int i = 0; i<n/2; i++) { // warm up
+			for (String text : texts) {
+				parse(text);
+			}
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i<n; i++) {
+			for (String text : texts) {
+				parse(text);
+			}
+		}
+		double secs = (System.nanoTime()-start)/1e9;
+		System.out.printf("lex+parse: %.2f ms per pass\n", secs*1000/n);
+	}
+
+	public static void parse(String text) {
+		BookishLexer lexer = new BookishLexer(CharStreams.fromString(text));
+		lexer.removeErrorListeners();
+		Tool.parse(new CommonTokenStream(lexer), "bench.md", 1, "document");
+	}
+
+	/** The text between <pyeval or <pyfig and > of each tag */
+	public static List<String> getTagArgs(String text) {
+		BookishLexer lexer = new BookishLexer(CharStreams.fromString(text));
+		lexer.removeErrorListeners();
+		List<String> tagArgs = new ArrayList<>();
+		for (Token t : lexer.getAllTokens()) {
+			String tag = t.getText();
+			switch ( t.getType() ) {
+				case BookishLexer.PYEVAL :
+					tagArgs.add(tag.substring("<pyeval".length(), tag.length()-1));
+					break;
+				case BookishLexer.PYFIG :
+					tagArgs.add(tag.substring("<pyfig".length(), tag.length()-1));
+					break;
+			}
+		}
+		return tagArgs;
+	}
+
+	/** A chapter that's mostly short pyeval and pyfig snippets */
+	public static String makeChapter(int numTags) {
+		StringBuilder buf = new StringBuilder("# Snippets\n\n");
+		for (int i = 0; i<numTags; i++) {
+			if ( i%100==0 ) {
+				buf.append(String.format("## Section %d\n\n", i/100));
+			}
+			if ( i%4==3 ) {
+				buf.append(String.format("<pyfig label=\"fig%d\" hide=true width=\"35em\">\nplt.plot(x, y%d)\n</pyfig>\n\n", i, i));
+			}
+			else {
+				buf.append(String.format("<pyeval label=\"ch%d\" hide=true output=\"df.head()\">\nx = %d\n</pyeval>\n\n", i%10, i));
+			}
+		}
+		return buf.toString();
+	}
+}
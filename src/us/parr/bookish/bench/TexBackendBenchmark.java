@@ -0,0 +1,94 @@
+package us.parr.bookish.bench;
+
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.Triple;
+import us.parr.bookish.Tool;
+import us.parr.bookish.parse.BookishParser;
+import us.parr.bookish.translate.Tex2SVG;
+import us.parr.bookish.translate.TexBackend;
+import us.parr.bookish.translate.TexFormats;
+import us.parr.bookish.translate.Translator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+
+/** Typeset every equation in a chapter with each Tex2SVG backend, one at a
+ *  time and then as one batch, and report equations/sec, with and without
+ *  a dumped preamble format. Nothing is cached; each run renders into its
+ *  own temp dir.
+ *
+ *  java us.parr.bookish.bench.TexBackendBenchmark [dir file.md [max-eqns]]
+ *
+ *  Defaults to the matrix-calculus example.
+ */
+public class TexBackendBenchmark {
+	public static void main(String[] args) throws Exception {
+		String inputDir = args.length>=2 ? args[0] : "examples/matrix-calculus";
+		String inputFile = args.length>=2 ? args[1] : "matrix-calculus.md";
+		int max = args.length>=3 ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+
+		Tool tool = new Tool();
+		BookishParser.DocumentContext tree = tool.parseChapter(inputDir, inputFile, 1).a;
+		List<Pair<String,Tex2SVG.LatexType>> equations = Translator.getEquations(tree);
+		if ( equations.size()>max ) {
+			equations = equations.subList(0, max);
+		}
+		int fontsize = Translator.INLINE_EQN_FONT_SIZE;
+		System.out.printf("%d equations from %s/%s\n", equations.size(), inputDir, inputFile);
+
+		for (String backend : Tex2SVG.backends.keySet()) {
+			for (boolean useFormat : new boolean[] {false, true}) {
+				String name = useFormat ? backend+"+fmt" : backend;
+				Path outputDir = Files.createTempDirectory("bookish-bench-"+backend+"-");
+				Files.createDirectories(outputDir.resolve("images"));
+				TexBackend b = Tex2SVG.newBackend(backend);
+				if ( useFormat ) { // first single run pays for building the format
+					b.setFormats(new TexFormats(outputDir.resolve("formats").toString()));
+				}
+				Tex2SVG tex2svg = new Tex2SVG(outputDir.toString(), outputDir.resolve("work").toString(), b);
+				try {
+					long start = System.nanoTime();
+					int ok = 0;
+					for (Pair<String,Tex2SVG.LatexType> eqn : equations) {
+						Triple<String,Float,Float> result = tex2svg.tex2svg(eqn.a, eqn.b, fontsize);
+						if ( result!=null && result.a!=null ) ok++;
+					}
+					report(name, "single", ok, equations.size(), System.nanoTime()-start);
+
+					start = System.nanoTime();
+					List<Triple<String,Float,Float>> results = tex2svg.tex2svgBatch(equations, fontsize);
+					long elapsed = System.nanoTime()-start;
+					if ( results==null ) {
+						System.out.printf("%-12s %-6s  failed or unsupported\n", name, "batch");
+					}
+					else {
+						ok = 0;
+						for (Triple<String,Float,Float> result : results) {
+							if ( result!=null && result.a!=null ) ok++;
+						}
+						report(name, "batch", ok, equations.size(), elapsed);
+					}
+				}
+				catch (Exception e) {
+					System.out.printf("%-12s can't run (%s); is it installed?\n", name, e.getMessage());
+				}
+				finally {
+					tex2svg.close();
+					Files.walk(outputDir)
+						.sorted(Comparator.reverseOrder())
+						.map(Path::toFile)
+						.forEach(File::delete);
+				}
+			}
+		}
+	}
+
+	protected static void report(String backend, String mode, int ok, int n, long nanos) {
+		double sec = nanos / 1e9;
+		System.out.printf("%-12s %-6s %4d/%d ok in %6.2fs = %6.1f eqns/sec\n",
+		                  backend, mode, ok, n, sec, n/sec);
+	}
+}
@@ -1,9 +1,13 @@
 package us.parr.bookish.model;
 
+import us.parr.bookish.translate.SVGSprite;
 import us.parr.bookish.translate.Translator;
 
 public class BlockEquation extends BlockImage {
 	public String eqn;
+	public String svg; // svg element to put right in the html (-embed-eqns svg)
+	public SVGSprite.Symbol sprite; // where it is in the chapter sprite (-embed-eqns sprite)
+	public String mathml; // <math> element instead of an image (-math mathml)
 
 	public BlockEquation(Translator translator, String imageFilename, String eqn) {
 		super(translator, imageFilename, "");
@@ -0,0 +1,16 @@
+package us.parr.bookish.model;
+
+import java.util.List;
+
+/** Simple inline math we can do in HTML w/o latex; see MathScanner */
+public class EqnExpr extends OutputModelObject {
+	@ModelElement
+	public List<OutputModelObject> elements;
+
+	public String latex; // original equation text
+
+	public EqnExpr(List<OutputModelObject> elements, String latex) {
+		this.elements = elements;
+		this.latex = latex;
+	}
+}
@@ -0,0 +1,17 @@
+package us.parr.bookish.model;
+
+/** base with optional subscript and/or superscript in an EqnExpr */
+public class EqnScript extends OutputModelObject {
+	@ModelElement
+	public OutputModelObject base;
+	@ModelElement
+	public OutputModelObject sub;
+	@ModelElement
+	public OutputModelObject sup;
+
+	public EqnScript(OutputModelObject base, OutputModelObject sub, OutputModelObject sup) {
+		this.base = base;
+		this.sub = sub;
+		this.sup = sup;
+	}
+}
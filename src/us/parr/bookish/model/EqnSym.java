@@ -0,0 +1,12 @@
+package us.parr.bookish.model;
+
+/** Upright piece of an EqnExpr like a number, operator, or capital Greek
+ *  letter. Text is already HTML (entities and all).
+ */
+public class EqnSym extends OutputModelObject {
+	public String text;
+
+	public EqnSym(String text) {
+		this.text = text;
+	}
+}
@@ -1,11 +1,15 @@
 package us.parr.bookish.model;
 
+import us.parr.bookish.translate.SVGSprite;
 public class InlineEquation extends InlineImage {
 	public String eqn;
 	public float height, depth;
 	public int descentPercentage;
 	public int depthRounded;
 	public float depthTweaked;
+	public String svg; // svg element to put right in the html (-embed-eqns svg)
+	public SVGSprite.Symbol sprite; // where it is in the chapter sprite (-embed-eqns sprite)
+	public String mathml; // <math> element instead of an image (-math mathml)
 
 	public InlineEquation(String imageFilename, String eqn, float height, float depth) {
 		super(imageFilename);
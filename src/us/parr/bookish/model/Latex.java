@@ -1,9 +1,12 @@
 package us.parr.bookish.model;
 
+import us.parr.bookish.translate.SVGSprite;
 import us.parr.bookish.translate.Translator;
 
 public class Latex extends BlockImage {
 	public String text;
+	public String svg; // svg element to put right in the html (-embed-eqns svg)
+	public SVGSprite.Symbol sprite; // where it is in the chapter sprite (-embed-eqns sprite)
 
 	public Latex(Translator translator, String src, String alt, String text) {
 		super(translator, src, alt);
@@ -1,10 +1,31 @@
 
 lexer grammar BookishLexer;
 
-SUBSUBSECTION: '#### ' ~'\n'+ {_tokenStartCharPositionInLine==0}? ;
-SUBSECTION: '### ' ~'\n'+ {_tokenStartCharPositionInLine==0}? ;
-SECTION   : '## ' ~'\n'+ {_tokenStartCharPositionInLine==0}? ;
-CHAPTER   : '# ' ~'\n'+ {_tokenStartCharPositionInLine==0}? ;
+@members {
+	/** Headers only count in column 0 but a predicate at the end of each
+	 *  header rule stops the DFA from caching anything while it matches
+	 *  the title, which made headers the most expensive tokens we had.
+	 *  So the rules match anywhere and this turns one that isn't at the
+	 *  left edge into POUND for just the #s, which is what the
+	 *  predicates gave us, and lexes the rest again.
+	 */
+	protected void headerOrPound() {
+		if ( _tokenStartCharPositionInLine==0 ) {
+			return;
+		}
+		_input.seek(_tokenStartCharIndex);
+		while ( _input.LA(1)=='#' ) {
+			_input.consume();
+		}
+		getInterpreter().setCharPositionInLine(_tokenStartCharPositionInLine+_input.index()-_tokenStartCharIndex);
+		setType(POUND);
+	}
+}
+
+SUBSUBSECTION: '#### ' ~'\n'+ {headerOrPound();} ;
+SUBSECTION: '### ' ~'\n'+ {headerOrPound();} ;
+SECTION   : '## ' ~'\n'+ {headerOrPound();} ;
+CHAPTER   : '# ' ~'\n'+ {headerOrPound();} ;
 
 POUND	  : '#'+ {_tokenStartCharPositionInLine!=0}? ;
 
@@ -34,7 +55,7 @@ PYFIG	  : '<pyfig' ARG* '>' -> pushMode(PYCODE) ;
 
 INLINE_PYEVAL : '\\pyeval' ;
 
-// This stuff parsed later (again) by XML.g4
+// This stuff parsed later (again) by Translator.parseXMLAttrs()
 fragment
 ARG : [ \r\n\t]* ATTR [ \r\n\t]* '=' [ \r\n\t]* (ATTR|ATTR_VALUE|ATTR_NUM) [ \r\n\t]* ;
 fragment
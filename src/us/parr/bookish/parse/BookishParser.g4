@@ -5,6 +5,8 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 import us.parr.lib.ParrtStrings;
 import us.parr.lib.ParrtCollections;
@@ -28,17 +30,32 @@ options {
 	 */
 	public Map<String,EntityDef> entities = new LinkedHashMap<>();
 
+	/** What the actions print, held until we know this parse is the one
+	 *  we keep (an SLL attempt that bails runs actions too); see
+	 *  printMessages() and Tool.parse().
+	 */
+	public StringBuilder outMessages = new StringBuilder();
+	public StringBuilder errMessages = new StringBuilder();
+
 	public void defEntity(EntityDef entity) {
 		if ( entity.label!=null ) {
 			if ( entities.containsKey(entity.label) ) {
-				System.err.printf("line %d: redefinition of label %s\n",
-				 entity.getStartToken().getLine(), entity.label);
+				errMessages.append(String.format("line %d: redefinition of label %s\n",
+				 entity.getStartToken().getLine(), entity.label));
 			}
 			entities.put(entity.label, entity);
-			System.out.println("Def "+entity);
+			outMessages.append("Def "+entity+"\n");
 		}
 	}
 
+	/** Print and forget held messages */
+	public void printMessages() {
+		System.out.print(outMessages);
+		System.err.print(errMessages);
+		outMessages.setLength(0);
+		errMessages.setLength(0);
+	}
+
 	// Each parser (usually per doc/chapter) keeps its own counts for sections, figures, sidenotes, web links, ...
 
 	public int defCounter = 1;
@@ -56,6 +73,11 @@ options {
 	public List<ExecutableCodeDef> codeBlocks = new ArrayList<>();
 	public Map<String,MutableInt> codeCounters = new HashMap<>();
 
+	/** refs lists of the paragraph_content rules we're inside, innermost
+	 *  on top, so ref can record itself without anybody searching trees.
+	 */
+	public Deque<List<Token>> refScopes = new ArrayDeque<>();
+
 	public String inputFilename;
 	public int chapNumber;
 
@@ -175,7 +197,7 @@ sidefig   : SIDEFIG attrs END_OF_TAG paragraph_content END_SIDEFIG
 				defEntity(new SideFigDef(figCounter, $SIDEFIG, $attrs.attrMap));
 			}
 			else {
-				System.err.println("line "+$SIDEFIG.line+": sidefig missing label attribute");
+				errMessages.append("line "+$SIDEFIG.line+": sidefig missing label attribute\n");
 			}
 			figCounter++;
 			}
@@ -187,7 +209,7 @@ figure    : FIGURE attrs END_OF_TAG paragraph_content END_FIGURE
 				defEntity(new FigureDef(figCounter, $FIGURE, $attrs.attrMap));
 			}
 			else {
-				System.err.println("line "+$FIGURE.line+": figure missing label attribute");
+				errMessages.append("line "+$FIGURE.line+": figure missing label attribute\n");
 			}
 			figCounter++;
 			}
@@ -287,9 +309,16 @@ paragraph_optional_blank_line
 	:	BLANK_LINE? paragraph_content
 	;
 
+/** refs is every REF in this paragraph, including nested ones, in order */
 paragraph_content
+locals [List<Token> refs = new ArrayList<>()]
+@init {refScopes.push($refs);}
 	:	(paragraph_element|quoted|ws)+
 	;
+	finally {
+	refScopes.pop();
+	if ( !refScopes.isEmpty() ) refScopes.peek().addAll($refs);
+	}
 
 paragraph_element
 	:	eqn
@@ -310,7 +339,7 @@ paragraph_element
 	|	other
 	;
 
-ref : REF ;
+ref : REF {if ( !refScopes.isEmpty() ) refScopes.peek().add($REF);} ;
 
 linebreak : LINE_BREAK ;
 
@@ -0,0 +1,153 @@
+package us.parr.bookish.translate;
+
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.Triple;
+import org.stringtemplate.v4.ST;
+import us.parr.lib.ParrtIO;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static us.parr.lib.ParrtSys.execInDir;
+
+/** latex (DVI mode) then dvisvgm. dvisvgm computes an exact bounding box
+ *  from the glyph outlines (-e) so there's no pdfcrop/Ghostscript step,
+ *  and height/depth come straight from the metrics TeX writes to the log.
+ *  -n turns glyphs into paths like pdf2svg does so the svg doesn't need
+ *  fonts. Uses the same eqntex.stg documents as xelatex.
+ */
+public class DVISVGMBackend implements TexBackend {
+	/** latex or dvilualatex; anything that emits DVI */
+	public String engine = "latex";
+
+	/** Preamble formats to start from; null means load the preamble every run */
+	public TexFormats formats;
+
+	@Override
+	public String getName() { return "dvisvgm"; }
+
+	@Override
+	public void setFormats(TexFormats formats) { this.formats = formats; }
+
+	@Override
+	public Triple<String,Float,Float> tex2svg(String tmpdir, String latex, Tex2SVG.LatexType type, int fontsize)
+		throws Exception
+	{
+		String fmt = formats!=null ? formats.getFormat(engine, fontsize, false) : null;
+		ST template = Tex2SVG.newTemplate(fmt!=null ? "document" : "texdoc");
+		ST body = Tex2SVG.newTemplate(Tex2SVG.getBodyTemplateName(type));
+		body.add("text", latex);
+		template.add("body", body.render());
+		if ( fmt==null ) { // else preamble is already in the format
+			template.add("fontsize", fontsize);
+		}
+		Files.write(Paths.get(tmpdir+"/temp.tex"), template.render().getBytes());
+		for (String f : new String[] {"temp.log", "temp.dvi", "temp.svg"}) {
+			Files.deleteIfExists(Paths.get(tmpdir+"/"+f)); // don't pick up last equation's output
+		}
+
+		String[] results = execInDir(tmpdir, Tex2SVG.getLatexCommand(engine, fmt, "temp.tex"));
+		if ( results[1].length()>0 ) {
+			System.err.println(results[1]);
+		}
+		String log = ParrtIO.load(tmpdir+"/temp.log");
+		reportErrors(log, latex);
+		if ( Files.exists(Paths.get(tmpdir+"/temp.log")) && !Files.exists(Paths.get(tmpdir+"/temp.dvi")) ) {
+			System.err.println("no output from latex for: "+latex);
+			return new Triple<>(null,0f,0f);
+		}
+		List<Pair<Float,Float>> metrics = Tex2SVG.getMetrics(log);
+		float height = 0, depth = 0;
+		if ( metrics.size()>0 ) {
+			height = metrics.get(0).a;
+			depth = metrics.get(0).b;
+		}
+
+		results = execInDir(tmpdir, "dvisvgm", "-e", "-n", "-o", "temp.svg", "temp.dvi");
+		if ( results[1].length()>0 && !Files.exists(Paths.get(tmpdir+"/temp.svg")) ) {
+			System.err.println(results[1]); // dvisvgm chats on stderr even when happy
+		}
+		return new Triple<>(new String(Files.readAllBytes(Paths.get(tmpdir+"/temp.svg"))), height, depth);
+	}
+
+	/** One latex run and one dvisvgm run for the whole list */
+	@Override
+	public List<Triple<String,Float,Float>> tex2svgBatch(String tmpdir,
+	                                                     List<Pair<String,Tex2SVG.LatexType>> equations,
+	                                                     int fontsize)
+		throws Exception
+	{
+		List<String> bodies = new ArrayList<>();
+		for (Pair<String,Tex2SVG.LatexType> eqn : equations) {
+			ST body = Tex2SVG.newTemplate(Tex2SVG.getBodyTemplateName(eqn.b));
+			body.add("text", eqn.a.trim());
+			bodies.add(body.render());
+		}
+		String fmt = formats!=null ? formats.getFormat(engine, fontsize, false) : null;
+		ST template = Tex2SVG.newTemplate(fmt!=null ? "batchdocument" : "texbatch");
+		template.add("bodies", bodies);
+		if ( fmt==null ) { // else preamble is already in the format
+			template.add("fontsize", fontsize);
+		}
+		Files.write(Paths.get(tmpdir+"/temp-batch.tex"), template.render().getBytes());
+		File[] oldPages = new File(tmpdir).listFiles((dir, name) -> name.startsWith("temp-batch-") && name.endsWith(".svg"));
+		if ( oldPages!=null ) {
+			for (File f : oldPages) {
+				f.delete();
+			}
+		}
+
+		String[] results = execInDir(tmpdir, Tex2SVG.getLatexCommand(engine, fmt, "temp-batch.tex"));
+		if ( results[1].length()>0 ) {
+			System.err.println(results[1]);
+		}
+		String log = ParrtIO.load(tmpdir+"/temp-batch.log");
+		reportErrors(log, null);
+		List<Pair<Float,Float>> metrics = Tex2SVG.getMetrics(log);
+		if ( metrics.size()!=equations.size() ) {
+			System.err.printf("equation batch has %d metrics for %d equations\n", metrics.size(), equations.size());
+			return null;
+		}
+
+		results = execInDir(tmpdir, "dvisvgm", "-e", "-n", "--page=1-", "--output=temp-batch-%p.svg", "temp-batch.dvi");
+
+		// dvisvgm may zero-pad %p so map page number to whatever file it made
+		Map<Integer,File> pages = new HashMap<>();
+		File[] pageFiles = new File(tmpdir).listFiles((dir, name) -> name.startsWith("temp-batch-") && name.endsWith(".svg"));
+		if ( pageFiles!=null ) {
+			for (File f : pageFiles) {
+				String n = f.getName().substring("temp-batch-".length(), f.getName().length()-".svg".length());
+				pages.put(Integer.parseInt(n), f);
+			}
+		}
+
+		List<Triple<String,Float,Float>> svgs = new ArrayList<>();
+		for (int i = 0; i<equations.size(); i++) {
+			File svgfile = pages.get(i+1);
+			if ( svgfile==null ) {
+				System.err.println(results[1]);
+				System.err.printf("equation batch missing page %d of %d\n", i+1, equations.size());
+				return null;
+			}
+			Pair<Float,Float> m = metrics.get(i);
+			svgs.add(new Triple<>(new String(Files.readAllBytes(svgfile.toPath())), m.a, m.b));
+		}
+		return svgs;
+	}
+
+	protected void reportErrors(String log, String latex) {
+		for (String line : log.split("\n")) {
+			if ( line.startsWith("!") || line.startsWith("l.") ) {
+				System.err.println(line);
+				if ( latex!=null ) {
+					System.err.println(latex);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package us.parr.bookish.translate;
+
+import org.antlr.v4.runtime.misc.Triple;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static us.parr.lib.ParrtStrings.md5hash;
+
+/** Content-addressed store of typeset equations in outputDir/images.
+ *  One manifest file maps (backend, type, equation hash, font size,
+ *  preamble hash) to the svg file and its metrics so we never have to scan images/ or
+ *  dig the depth back out of a file name. We load it once at startup and
+ *  look everything up in memory.
+ *
+ *  Equations latex choked on are recorded without a file so we don't rerun
+ *  broken latex on every build; edit the equation and its hash changes.
+ *  Failures expire after failureTTL in case it was the latex install
+ *  that was broken.
+ *
+ *  Every get() or put() marks the entry as used by this build and stamps
+ *  it; collect() then sweeps what nobody used (old versions of edited
+ *  equations) except the most recently used few, so images/ doesn't grow
+ *  forever.
+ */
+public class EquationStore {
+	public static final String MANIFEST_FILENAME = ".eqn-manifest";
+	public static final String MANIFEST_VERSION = "# bookish eqn manifest v3";
+
+	/** Pre-manifest (xelatex) file names importImagesDir() knows */
+	public static final Pattern importEqnPattern = Pattern.compile("eqn-([0-9a-fA-F]+)-depth([0-9.]+)\\.svg");
+	public static final Pattern importBlockEqnPattern = Pattern.compile("blkeqn-([0-9a-fA-F]+)\\.svg");
+	public static final Pattern importLatexPattern = Pattern.compile("latex-([0-9a-fA-F]+)\\.svg");
+
+	public static final Pattern svgWidthPattern = Pattern.compile("<svg[^>]*\\swidth=\"([0-9.]+)(pt)?\"");
+
+	public static class Entry {
+		public String key;
+		public String file; // relative to outputDir; null means latex failed
+		public float height, depth, width;
+		public long lastUsed; // ms since epoch of last build that needed it; when it failed if failed()
+
+		public Entry(String key, String file, float height, float depth, float width) {
+			this.key = key;
+			this.file = file;
+			this.height = height;
+			this.depth = depth;
+			this.width = width;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		public boolean failed() { return file==null; }
+
+		@Override
+		public String toString() {
+			return key+'\t'+(file!=null ? file : "-")+'\t'+height+'\t'+depth+'\t'+width+'\t'+lastUsed;
+		}
+	}
+
+	public final String outputDir;
+
+	/** Equations typeset on tight pages (-tight-tex) aren't cropped like the
+	 *  others so they get their own keys and files.
+	 */
+	public boolean tight = false;
+
+	/** Tex2SVG backend typesetting equations; part of every key, and of the
+	 *  file name unless it's xelatex, so switching backends re-renders.
+	 */
+	public String backend = "xelatex";
+
+	/** If not null, svg files in images/ are hard links into this machine-wide cache */
+	public SharedEquationCache shared;
+
+	/** Shrinks svg on its way into images/; null means write it as is (-raw-svg) */
+	public SVGOptimizer svgOptimizer = new SVGOptimizer();
+
+	/** How long (ms) to believe latex can't typeset an equation before trying again */
+	public long failureTTL = 60*60*1000;
+
+	protected final Map<String,Entry> index = new ConcurrentHashMap<>();
+
+	/** Keys this build asked for; collect() keeps these */
+	protected final Set<String> used = ConcurrentHashMap.newKeySet();
+
+	/** When this build started; lastUsed for everything in used */
+	protected final long now = System.currentTimeMillis();
+
+	protected volatile boolean dirty = false;
+
+	public EquationStore(String outputDir) {
+		this.outputDir = outputDir;
+		if ( !Files.exists(getManifestPath()) || !load() ) {
+			importImagesDir();
+		}
+	}
+
+	public String getKey(String latex, Tex2SVG.LatexType type, int fontsize) {
+		return backend+":"+type+":"+md5hash(latex.trim())+":"+fontsize+":"+Tex2SVG.getPreambleHash(fontsize, tight);
+	}
+
+	/** Return entry for latex or null if we've never typeset it (or its
+	 *  svg file has disappeared, or it failed longer than failureTTL ago).
+	 *  Check failed() on the result.
+	 */
+	public Entry get(String latex, Tex2SVG.LatexType type, int fontsize) {
+		String key = getKey(latex, type, fontsize);
+		Entry e = index.get(key);
+		if ( e!=null && !e.failed() && !Files.exists(Paths.get(outputDir, e.file)) ) {
+			index.remove(key); // somebody wiped images/
+			dirty = true;
+			return null;
+		}
+		if ( e!=null && e.failed() ) {
+			if ( now-e.lastUsed>failureTTL ) { // try latex again
+				index.remove(key);
+				dirty = true;
+				return null;
+			}
+			used.add(key); // leave lastUsed as time of failure
+			return e;
+		}
+		if ( e!=null && used.add(key) && e.lastUsed!=now ) {
+			e.lastUsed = now;
+			dirty = true;
+		}
+		return e;
+	}
+
+	/** Record result of Tex2SVG for latex, writing its svg into images/.
+	 *  A null svg records a failure.
+	 */
+	public Entry put(String latex, Tex2SVG.LatexType type, int fontsize, Triple<String,Float,Float> svg) {
+		String key = getKey(latex, type, fontsize);
+		Entry e;
+		if ( svg==null || svg.a==null ) {
+			e = new Entry(key, null, 0, 0, 0);
+		}
+		else {
+			String file = getRelativePath(latex, type, svg.c);
+			if ( !backend.equals("xelatex") ) {
+				file = file.replace(".svg", "-"+backend+".svg");
+			}
+			if ( tight ) {
+				file = file.replace(".svg", "-tight.svg");
+			}
+			String text = svgOptimizer!=null ? svgOptimizer.optimize(svg.a) : svg.a;
+			try {
+				if ( shared!=null ) {
+					shared.link(text, Paths.get(outputDir, file));
+				}
+				else {
+					writeAtomically(Paths.get(outputDir, file), text);
+				}
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace(System.err);
+				return null;
+			}
+			e = new Entry(key, file, svg.b, svg.c, getSVGWidth(text));
+		}
+		e.lastUsed = now;
+		used.add(key);
+		index.put(key, e);
+		dirty = true;
+		return e;
+	}
+
+	/** Write manifest if anything changed; atomic so a crash can't leave half a manifest */
+	public synchronized void save() {
+		if ( !dirty ) {
+			return;
+		}
+		StringBuilder buf = new StringBuilder();
+		buf.append(MANIFEST_VERSION).append('\n');
+		for (Entry e : index.values()) {
+			buf.append(e).append('\n');
+		}
+		try {
+			writeAtomically(getManifestPath(), buf.toString());
+			dirty = false;
+		}
+		catch (IOException ioe) {
+			System.err.println("can't write "+getManifestPath()+": "+ioe.getMessage());
+		}
+	}
+
+	/** Delete equation svg files this build didn't use, keeping the keep
+	 *  most recently used of them so undoing an edit doesn't mean latex
+	 *  again. Only files of entries dropped here go; files in images/ this
+	 *  manifest never heard of might belong to a build running alongside.
+	 *  Call only after a whole build so everything live has been marked.
+	 *  Returns a line for the build report.
+	 */
+	public synchronized String collect(int keep) {
+		List<Entry> unused = new ArrayList<>();
+		for (Entry e : index.values()) {
+			if ( !used.contains(e.key) ) {
+				unused.add(e);
+			}
+		}
+		unused.sort(Comparator.comparingLong((Entry e) -> e.lastUsed).reversed());
+		List<Entry> dropped = unused.subList(Math.min(keep, unused.size()), unused.size());
+		for (Entry e : dropped) {
+			index.remove(e.key);
+			dirty = true;
+		}
+
+		Set<String> live = new HashSet<>(); // files can be shared by keys that differ only in preamble
+		for (Entry e : index.values()) {
+			if ( !e.failed() ) {
+				live.add(e.file);
+			}
+		}
+		int files = 0;
+		long bytes = 0;
+		for (Entry e : dropped) {
+			if ( e.failed() || !live.add(e.file) ) { // no file or still used (or already deleted)
+				continue;
+			}
+			File f = new File(outputDir+"/"+e.file);
+			long size = f.length();
+			if ( f.delete() ) {
+				files++;
+				bytes += size;
+			}
+			else if ( f.exists() ) {
+				System.err.println("can't delete unused "+f);
+			}
+		}
+		return String.format("deleted %d unused equation files (%,d bytes); kept %d unused for undo",
+		                     files, bytes, Math.min(keep, unused.size()));
+	}
+
+	public Path getManifestPath() {
+		return Paths.get(outputDir, MANIFEST_FILENAME);
+	}
+
+	/** Read the manifest; false if it's from an older version (no backend
+	 *  in the keys) so we should fall back on what's in images/.
+	 */
+	protected boolean load() {
+		try {
+			List<String> lines = Files.readAllLines(getManifestPath());
+			if ( lines.size()==0 || !lines.get(0).equals(MANIFEST_VERSION) ) {
+				System.err.println("ignoring out of date "+getManifestPath());
+				return false;
+			}
+			for (String line : lines.subList(1, lines.size())) {
+				String[] cols = line.split("\t");
+				if ( cols.length!=6 ) {
+					continue;
+				}
+				String file = cols[1].equals("-") ? null : cols[1];
+				Entry e = new Entry(cols[0], file,
+				                    Float.parseFloat(cols[2]),
+				                    Float.parseFloat(cols[3]),
+				                    Float.parseFloat(cols[4]));
+				e.lastUsed = Long.parseLong(cols[5]);
+				index.put(e.key, e);
+			}
+		}
+		catch (IOException|NumberFormatException e) {
+			System.err.println("can't read "+getManifestPath()+": "+e.getMessage());
+		}
+		return true;
+	}
+
+	/** No manifest yet, so pick up any svg files made before we had one;
+	 *  xelatex made those. Only the depth survives in the file name so
+	 *  height and width are unknown (-1). One directory scan, once.
+	 */
+	protected void importImagesDir() {
+		// -tight.svg and -backend.svg files postdate the manifest; the patterns skip them
+		File[] files = new File(outputDir+"/images").listFiles((dir, name) -> name.endsWith(".svg"));
+		if ( files==null ) {
+			return;
+		}
+		String inlinePreamble = Tex2SVG.getPreambleHash(Translator.INLINE_EQN_FONT_SIZE);
+		String blockPreamble = Tex2SVG.getPreambleHash(Translator.BLOCK_EQN_FONT_SIZE);
+		for (File f : files) {
+			String name = f.getName();
+			Entry e = null;
+			Matcher m;
+			if ( (m=importEqnPattern.matcher(name)).matches() ) {
+				float depth;
+				try {
+					depth = Float.parseFloat(m.group(2));
+				}
+				catch (NumberFormatException nfe) {
+					continue; // not one of ours
+				}
+				String key = "xelatex:"+Tex2SVG.LatexType.EQN+":"+m.group(1)+":"+Translator.INLINE_EQN_FONT_SIZE+":"+inlinePreamble;
+				e = new Entry(key, "images/"+name, -1, depth, -1);
+			}
+			else if ( (m=importBlockEqnPattern.matcher(name)).matches() ) {
+				String key = "xelatex:"+Tex2SVG.LatexType.BLOCKEQN+":"+m.group(1)+":"+Translator.BLOCK_EQN_FONT_SIZE+":"+blockPreamble;
+				e = new Entry(key, "images/"+name, -1, -1, -1);
+			}
+			else if ( (m=importLatexPattern.matcher(name)).matches() ) {
+				String key = "xelatex:"+Tex2SVG.LatexType.LATEX+":"+m.group(1)+":"+Translator.BLOCK_EQN_FONT_SIZE+":"+blockPreamble;
+				e = new Entry(key, "images/"+name, -1, -1, -1);
+			}
+			if ( e!=null ) {
+				index.put(e.key, e);
+				dirty = true;
+			}
+		}
+	}
+
+	/** Same file names we've always used so existing output stays valid */
+	public static String getRelativePath(String latex, Tex2SVG.LatexType type, float depth) {
+		String hash = md5hash(latex.trim());
+		switch ( type ) {
+			case EQN :
+				return String.format("images/eqn-%s-depth%06.2f.svg", hash, depth);
+			case BLOCKEQN :
+				return "images/blkeqn-"+hash+".svg";
+			default :
+				return "images/latex-"+hash+".svg";
+		}
+	}
+
+	public static float getSVGWidth(String svg) {
+		Matcher m = svgWidthPattern.matcher(svg);
+		if ( m.find() ) {
+			return Float.parseFloat(m.group(1));
+		}
+		return -1;
+	}
+
+	/** Write to a temp file next to target then rename over it so readers
+	 *  (and a build that crashes halfway) never see a partial file.
+	 */
+	public static void writeAtomically(Path target, String content) throws IOException {
+		Path dir = target.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path tmp = Files.createTempFile(dir, ".tmp-", null);
+		try {
+			Files.write(tmp, content.getBytes());
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
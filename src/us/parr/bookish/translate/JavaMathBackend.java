@@ -0,0 +1,132 @@
+package us.parr.bookish.translate;
+
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.Triple;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/** Typeset equations in process with MathParser and JavaMathRenderer, no
+ *  latex and no processes, handing anything outside that subset (and all
+ *  LATEX blocks) to a fallback backend, xelatex by default. Select with
+ *  -eqn-backend java.
+ *
+ *  Counts are shared by every worker's backend so getReport() can say at
+ *  the end of a build what fell back and why, which tells us what to
+ *  teach MathParser next.
+ */
+public class JavaMathBackend implements TexBackend {
+	public static final AtomicInteger rendered = new AtomicInteger();
+
+	/** Unsupported construct to how many equations it sent to latex */
+	public static final ConcurrentMap<String,AtomicInteger> fallbacks = new ConcurrentHashMap<>();
+
+	public final TexBackend fallback;
+
+	protected final Map<Integer,JavaMathRenderer> renderers = new HashMap<>();
+
+	public JavaMathBackend() {
+		this(new XelatexBackend());
+	}
+
+	public JavaMathBackend(TexBackend fallback) {
+		this.fallback = fallback;
+	}
+
+	@Override
+	public String getName() { return "java"; }
+
+	@Override
+	public void setFormats(TexFormats formats) { fallback.setFormats(formats); }
+
+	@Override
+	public boolean isTight() { return fallback.isTight(); }
+
+	@Override
+	public Triple<String,Float,Float> tex2svg(String workDir, String latex, Tex2SVG.LatexType type, int fontsize)
+		throws Exception
+	{
+		Triple<String,Float,Float> result = render(latex, type, fontsize);
+		if ( result!=null ) {
+			return result;
+		}
+		return fallback.tex2svg(workDir, latex, type, fontsize);
+	}
+
+	/** Render what we can here and batch the rest through the fallback */
+	@Override
+	public List<Triple<String,Float,Float>> tex2svgBatch(String workDir,
+	                                                     List<Pair<String,Tex2SVG.LatexType>> equations,
+	                                                     int fontsize)
+		throws Exception
+	{
+		List<Triple<String,Float,Float>> results = new ArrayList<>();
+		List<Integer> todo = new ArrayList<>();
+		for (Pair<String,Tex2SVG.LatexType> eqn : equations) {
+			Triple<String,Float,Float> result = render(eqn.a, eqn.b, fontsize);
+			if ( result==null ) {
+				todo.add(results.size());
+			}
+			results.add(result);
+		}
+		if ( todo.isEmpty() ) {
+			return results;
+		}
+		List<Pair<String,Tex2SVG.LatexType>> rest = todo.stream().map(equations::get).collect(Collectors.toList());
+		List<Triple<String,Float,Float>> restResults = rest.size()>1 ? fallback.tex2svgBatch(workDir, rest, fontsize) : null;
+		for (int i = 0; i<todo.size(); i++) {
+			Pair<String,Tex2SVG.LatexType> eqn = rest.get(i);
+			Triple<String,Float,Float> result = restResults!=null ? restResults.get(i) : fallback.tex2svg(workDir, eqn.a, eqn.b, fontsize);
+			results.set(todo.get(i), result);
+		}
+		return results;
+	}
+
+	@Override
+	public void close() { fallback.close(); }
+
+	/** Return (svg,height,depth) or null if the fallback should do it */
+	public Triple<String,Float,Float> render(String latex, Tex2SVG.LatexType type, int fontsize) {
+		if ( type==Tex2SVG.LatexType.LATEX ) {
+			countFallback("latex block");
+			return null;
+		}
+		JavaMathRenderer renderer = renderers.computeIfAbsent(fontsize, JavaMathRenderer::new);
+		try {
+			Triple<String,Float,Float> result = renderer.render(latex.trim(), type==Tex2SVG.LatexType.BLOCKEQN);
+			rendered.incrementAndGet();
+			return result;
+		}
+		catch (MathParser.Unsupported u) {
+			countFallback(u.construct);
+		}
+		catch (RuntimeException re) { // no usable fonts in a headless container, say
+			countFallback(re.getClass().getSimpleName());
+		}
+		return null;
+	}
+
+	protected static void countFallback(String construct) {
+		fallbacks.computeIfAbsent(construct, c -> new AtomicInteger()).incrementAndGet();
+	}
+
+	public static String getReport() {
+		int n = fallbacks.values().stream().mapToInt(AtomicInteger::get).sum();
+		StringBuilder buf = new StringBuilder();
+		buf.append(String.format("typeset %d equations in process, %d with latex", rendered.get(), n));
+		if ( n>0 ) {
+			buf.append(" because of: ");
+			buf.append(fallbacks.entrySet().stream()
+				           .sorted((a, b) -> b.getValue().get()-a.getValue().get())
+				           .map(e -> e.getKey()+" ("+e.getValue().get()+")")
+				           .collect(Collectors.joining(", ")));
+		}
+		return buf.toString();
+	}
+}
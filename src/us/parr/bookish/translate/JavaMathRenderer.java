@@ -0,0 +1,504 @@
+package us.parr.bookish.translate;
+
+import org.antlr.v4.runtime.misc.Triple;
+
+import java.awt.Font;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static us.parr.bookish.translate.MathParser.Accent;
+import static us.parr.bookish.translate.MathParser.Fenced;
+import static us.parr.bookish.translate.MathParser.Frac;
+import static us.parr.bookish.translate.MathParser.Kind;
+import static us.parr.bookish.translate.MathParser.Node;
+import static us.parr.bookish.translate.MathParser.Row;
+import static us.parr.bookish.translate.MathParser.Script;
+import static us.parr.bookish.translate.MathParser.Space;
+import static us.parr.bookish.translate.MathParser.Style;
+import static us.parr.bookish.translate.MathParser.Styled;
+import static us.parr.bookish.translate.MathParser.Sym;
+import static us.parr.bookish.translate.MathParser.Table;
+import static us.parr.bookish.translate.MathParser.Unsupported;
+
+/** Typeset a MathParser tree in process with glyph outlines from a system
+ *  font (Java2D), following a simplified version of TeX's rules for math
+ *  (The TeXbook, appendix G): italic variables, spacing by atom type,
+ *  script shifts, fraction and big operator placement, and delimiters
+ *  stretched to fit. Output is an svg holding a single path, which is
+ *  what pdf2svg gives us too, plus height and depth around the baseline
+ *  in pt just like the latex metrics.
+ *
+ *  Not thread safe (font cache); make one per worker.
+ */
+public class JavaMathRenderer {
+	public static final int DISPLAY = 0, TEXT = 1, SCRIPT = 2, SCRIPTSCRIPT = 3;
+	protected static final float[] scales = {1f, 1f, 0.7f, 0.5f};
+
+	/** Layout parameters in ems of the current style */
+	public static final float AXIS = 0.25f;  // fraction bars and big operators center on this
+	public static final float RULE = 0.04f;  // fraction bar thickness
+	public static final float THIN = 3/18f, MEDIUM = 4/18f, THICK = 5/18f;
+	public static final float NULL_DELIMITER = 0.12f;
+	public static final float SCRIPT_SPACE = 0.05f;
+
+	/** Atom classes for spacing; TeX's ord, op, bin, rel, open, close, punct, inner */
+	protected static final int ORD = 0, OP = 1, BIN = 2, REL = 3, OPEN = 4, CLOSE = 5, PUNCT = 6, INNER = 7;
+
+	/** Space between atoms by class (TeXbook p. 170): 1 thin, 2 medium,
+	 *  3 thick; negative means only in display and text styles.
+	 */
+	protected static final int[][] spacing = {
+		//ORD OP BIN REL OPEN CLOSE PUNCT INNER
+		{ 0,  1, -2, -3,  0,   0,    0,   -1}, // ORD
+		{ 1,  1,  0, -3,  0,   0,    0,   -1}, // OP
+		{-2, -2,  0,  0, -2,   0,    0,   -2}, // BIN
+		{-3, -3,  0,  0, -3,   0,    0,   -3}, // REL
+		{ 0,  0,  0,  0,  0,   0,    0,    0}, // OPEN
+		{ 0,  1, -2, -3,  0,   0,    0,   -1}, // CLOSE
+		{-1, -1,  0, -1, -1,  -1,   -1,   -1}, // PUNCT
+		{-1,  1, -2, -3, -1,   0,   -1,   -1}  // INNER
+	};
+	protected static final float[] spaceSizes = {0, THIN, MEDIUM, THICK};
+
+	protected static final FontRenderContext frc = new FontRenderContext(null, true, true);
+
+	public final String fontFamily;
+	public final float fontsize;
+
+	protected final Map<String,Font> fonts = new HashMap<>();
+
+	protected static abstract class Box {
+		public float width, height, depth;
+
+		/** Add outlines to path with our baseline origin at (x,y); y grows down as in svg */
+		public abstract void draw(Path2D path, float x, float y);
+	}
+
+	protected static class Glyphs extends Box {
+		public final Shape outline; // baseline origin at (0,0)
+		public final float inkTop, inkBottom, inkRight;
+
+		public Glyphs(Shape outline, float advance) {
+			this.outline = outline;
+			Rectangle2D ink = outline.getBounds2D();
+			inkTop = (float)-ink.getMinY();
+			inkBottom = (float)-ink.getMaxY();
+			inkRight = (float)ink.getMaxX();
+			width = advance;
+			height = Math.max(inkTop, 0);
+			depth = Math.max(-inkBottom, 0);
+		}
+
+		@Override
+		public void draw(Path2D path, float x, float y) {
+			path.append(AffineTransform.getTranslateInstance(x, y).createTransformedShape(outline), false);
+		}
+	}
+
+	protected static class Rule extends Box {
+		public Rule(float width, float height, float depth) {
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+		}
+
+		@Override
+		public void draw(Path2D path, float x, float y) {
+			path.append(new Rectangle2D.Float(x, y-height, width, height+depth), false);
+		}
+	}
+
+	protected static class Kern extends Box {
+		public Kern(float width) { this.width = width; }
+
+		@Override
+		public void draw(Path2D path, float x, float y) { }
+	}
+
+	/** Boxes at arbitrary offsets; up is positive above our baseline */
+	protected static class Group extends Box {
+		protected final List<Box> kids = new ArrayList<>();
+		protected final List<float[]> offsets = new ArrayList<>();
+
+		public void add(Box b, float dx, float up) {
+			kids.add(b);
+			offsets.add(new float[] {dx, up});
+			width = Math.max(width, dx+b.width);
+			height = Math.max(height, up+b.height);
+			depth = Math.max(depth, b.depth-up);
+		}
+
+		@Override
+		public void draw(Path2D path, float x, float y) {
+			for (int i = 0; i<kids.size(); i++) {
+				float[] offset = offsets.get(i);
+				kids.get(i).draw(path, x+offset[0], y-offset[1]);
+			}
+		}
+	}
+
+	public JavaMathRenderer(float fontsize) {
+		this("Serif", fontsize);
+	}
+
+	public JavaMathRenderer(String fontFamily, float fontsize) {
+		this.fontFamily = fontFamily;
+		this.fontsize = fontsize;
+	}
+
+	/** Return (svg,height,depth) for latex in inline or display style */
+	public Triple<String,Float,Float> render(String latex, boolean display) throws Unsupported {
+		Box box = layout(MathParser.parse(latex), display ? DISPLAY : TEXT, null);
+		if ( box.width<=0 ) {
+			throw new Unsupported("empty equation");
+		}
+		Path2D path = new Path2D.Float();
+		box.draw(path, 0, box.height);
+		return new Triple<>(toSVG(path, box.width, box.height+box.depth), box.height, box.depth);
+	}
+
+	protected Box layout(Node n, int level, Style style) throws Unsupported {
+		if ( n instanceof Sym ) return layoutSym((Sym)n, level, style);
+		if ( n instanceof Row ) return layoutRow(((Row)n).elements, level, style);
+		if ( n instanceof Script ) return layoutScript((Script)n, level, style);
+		if ( n instanceof Frac ) return layoutFrac((Frac)n, level, style);
+		if ( n instanceof Styled ) return layout(((Styled)n).body, level, ((Styled)n).style);
+		if ( n instanceof Fenced ) {
+			Fenced f = (Fenced)n;
+			return fence(f.left, f.right, layout(f.body, level, style), level);
+		}
+		if ( n instanceof Table ) return layoutTable((Table)n, level, style);
+		if ( n instanceof Accent ) return layoutAccent((Accent)n, level, style);
+		if ( n instanceof Space ) return new Kern(((Space)n).em*em(level));
+		throw new Unsupported(n.getClass().getSimpleName());
+	}
+
+	protected Box layoutSym(Sym s, int level, Style style) throws Unsupported {
+		float em = em(level);
+		if ( s.size>0 ) {
+			return delimiter(s.text, s.size*em, level);
+		}
+		if ( s.kind==Kind.OP ) { // bigger in display style and centered on the axis
+			boolean integral = "\u222b\u222c\u222e".contains(s.text);
+			float scale = level==DISPLAY ? (integral ? 2.2f : 1.7f) : 1.15f;
+			Glyphs g = glyphs(s.text, Font.PLAIN, em*scale);
+			Group op = new Group();
+			op.add(g, 0, AXIS*em-(g.inkTop+g.inkBottom)/2);
+			return op;
+		}
+		int fontStyle = Font.PLAIN;
+		if ( style==Style.BOLD ) {
+			fontStyle = Font.BOLD;
+		}
+		else if ( style==Style.ITALIC || (style==null && s.kind==Kind.VAR) ) {
+			fontStyle = Font.ITALIC;
+		}
+		Glyphs g = glyphs(s.text, fontStyle, em);
+		if ( fontStyle==Font.ITALIC && g.inkRight>g.width ) {
+			g.width = g.inkRight; // italic correction so f(x) doesn't collide
+		}
+		return g;
+	}
+
+	protected Box layoutRow(List<Node> elements, int level, Style style) throws Unsupported {
+		int[] classes = new int[elements.size()];
+		int last = -1;
+		for (int i = 0; i<elements.size(); i++) { // binary ops with nothing on the left are signs (TeXbook p. 442)
+			int c = getAtomClass(elements.get(i));
+			classes[i] = c;
+			if ( c<0 ) continue;
+			if ( c==BIN && (last<0 || classes[last]==BIN || classes[last]==OP || classes[last]==REL ||
+			                classes[last]==OPEN || classes[last]==PUNCT) )
+			{
+				classes[i] = ORD;
+			}
+			if ( (c==REL || c==CLOSE || c==PUNCT) && last>=0 && classes[last]==BIN ) {
+				classes[last] = ORD;
+			}
+			last = i;
+		}
+		if ( last>=0 && classes[last]==BIN ) {
+			classes[last] = ORD;
+		}
+
+		Group row = new Group();
+		float em = em(level);
+		float x = 0;
+		int prev = -1;
+		for (int i = 0; i<elements.size(); i++) {
+			Box b = layout(elements.get(i), level, style);
+			if ( classes[i]>=0 ) {
+				if ( prev>=0 ) {
+					int space = spacing[prev][classes[i]];
+					if ( space>0 || level<=TEXT ) {
+						x += spaceSizes[Math.abs(space)]*em;
+					}
+				}
+				prev = classes[i];
+			}
+			row.add(b, x, 0);
+			x += b.width;
+		}
+		row.width = x;
+		return row;
+	}
+
+	protected Box layoutScript(Script s, int level, Style style) throws Unsupported {
+		Box base = layout(s.base, level, style);
+		int scriptLevel = level<=TEXT ? SCRIPT : SCRIPTSCRIPT;
+		Box sub = s.sub!=null ? layout(s.sub, scriptLevel, style) : null;
+		Box sup = s.sup!=null ? layout(s.sup, scriptLevel, style) : null;
+		float em = em(level);
+		if ( s.base instanceof Sym && ((Sym)s.base).limits && level==DISPLAY ) {
+			return limits(base, sub, sup, em);
+		}
+
+		Group g = new Group();
+		g.add(base, 0, 0);
+		float x = base.width;
+		float width = 0;
+		float supShift = 0, subShift = 0;
+		if ( sup!=null ) {
+			supShift = Math.max(level==DISPLAY ? 0.41f*em : 0.36f*em, base.height-0.25f*em);
+			supShift = Math.max(supShift, sup.depth+0.11f*em);
+			width = sup.width;
+		}
+		if ( sub!=null ) {
+			subShift = Math.max(sup!=null ? 0.25f*em : 0.15f*em, base.depth+0.05f*em);
+			subShift = Math.max(subShift, sub.height-0.36f*em);
+			width = Math.max(width, sub.width);
+		}
+		if ( sub!=null && sup!=null ) { // keep them from touching
+			float gap = (supShift-sup.depth)-(sub.height-subShift);
+			if ( gap<4*RULE*em ) {
+				subShift += 4*RULE*em-gap;
+			}
+		}
+		if ( sup!=null ) g.add(sup, x, supShift);
+		if ( sub!=null ) g.add(sub, x, -subShift);
+		g.width = x+width+SCRIPT_SPACE*em;
+		return g;
+	}
+
+	/** Scripts centered above and below, as for \sum in display math */
+	protected Box limits(Box op, Box sub, Box sup, float em) {
+		float width = Math.max(op.width, Math.max(sub!=null ? sub.width : 0, sup!=null ? sup.width : 0));
+		float gap = 0.15f*em;
+		Group g = new Group();
+		g.add(op, (width-op.width)/2, 0);
+		if ( sup!=null ) g.add(sup, (width-sup.width)/2, op.height+gap+sup.depth);
+		if ( sub!=null ) g.add(sub, (width-sub.width)/2, -(op.depth+gap+sub.height));
+		g.width = width;
+		return g;
+	}
+
+	protected Box layoutFrac(Frac f, int level, Style style) throws Unsupported {
+		int partLevel = level==DISPLAY ? TEXT : level==TEXT ? SCRIPT : SCRIPTSCRIPT;
+		Box num = layout(f.num, partLevel, style);
+		Box den = layout(f.den, partLevel, style);
+		float em = em(level);
+		float rule = RULE*em;
+		float gap = level==DISPLAY ? 3*rule : rule;
+		float axis = AXIS*em;
+		float up = Math.max(level==DISPLAY ? 0.677f*em : 0.394f*em, axis+rule/2+gap+num.depth);
+		float down = Math.max(level==DISPLAY ? 0.686f*em : 0.345f*em, den.height+gap+rule/2-axis);
+		float width = Math.max(num.width, den.width);
+		float pad = NULL_DELIMITER*em;
+		Group g = new Group();
+		g.add(num, pad+(width-num.width)/2, up);
+		g.add(new Rule(width, axis+rule/2, rule/2-axis), pad, 0);
+		g.add(den, pad+(width-den.width)/2, -down);
+		g.width = width+2*pad;
+		return g;
+	}
+
+	protected Box layoutTable(Table t, int level, Style style) throws Unsupported {
+		int cellLevel = level==DISPLAY ? TEXT : level;
+		float em = em(level);
+		float cem = em(cellLevel);
+		int ncols = 0;
+		for (List<Node> row : t.rows) {
+			ncols = Math.max(ncols, row.size());
+		}
+		float[] colWidths = new float[ncols];
+		float[] heights = new float[t.rows.size()];
+		float[] depths = new float[t.rows.size()];
+		List<List<Box>> boxes = new ArrayList<>();
+		for (int r = 0; r<t.rows.size(); r++) {
+			List<Box> row = new ArrayList<>();
+			heights[r] = 0.84f*cem; // array strut
+			depths[r] = 0.36f*cem;
+			for (int c = 0; c<t.rows.get(r).size(); c++) {
+				Box b = layout(t.rows.get(r).get(c), cellLevel, style);
+				row.add(b);
+				colWidths[c] = Math.max(colWidths[c], b.width);
+				heights[r] = Math.max(heights[r], b.height);
+				depths[r] = Math.max(depths[r], b.depth);
+			}
+			boxes.add(row);
+		}
+		float total = 0;
+		for (int r = 0; r<heights.length; r++) {
+			total += heights[r]+depths[r];
+		}
+		float colsep = 1f*cem;
+		Group table = new Group();
+		float top = 0; // distance from top of table to top of row
+		for (int r = 0; r<boxes.size(); r++) {
+			float up = AXIS*em+total/2-(top+heights[r]);
+			float x = 0;
+			for (int c = 0; c<boxes.get(r).size(); c++) {
+				Box b = boxes.get(r).get(c);
+				char align = t.align.charAt(Math.min(c, t.align.length()-1));
+				float dx = align=='l' ? 0 : align=='r' ? colWidths[c]-b.width : (colWidths[c]-b.width)/2;
+				table.add(b, x+dx, up);
+				x += colWidths[c]+colsep;
+			}
+			top += heights[r]+depths[r];
+		}
+		float width = 0;
+		for (float w : colWidths) width += w;
+		table.width = width+colsep*Math.max(ncols-1, 0);
+		if ( t.left.isEmpty() && t.right.isEmpty() ) {
+			return table;
+		}
+		return fence(t.left, t.right, table, level);
+	}
+
+	protected Box layoutAccent(Accent a, int level, Style style) throws Unsupported {
+		Box base = layout(a.base, level, style);
+		float em = em(level);
+		Group g = new Group();
+		g.add(base, 0, 0);
+		if ( a.accent.equals("\u00af") ) { // \bar, \overline: a rule as wide as the base
+			g.add(new Rule(base.width, RULE*em, 0), 0, base.height+0.1f*em);
+			return g;
+		}
+		Glyphs accent = glyphs(a.accent, Font.PLAIN, em);
+		g.add(accent, (base.width-accent.width)/2, base.height+0.05f*em-accent.inkBottom);
+		g.width = base.width;
+		return g;
+	}
+
+	/** Put delimiters around body big enough to cover it (TeXbook p. 152) */
+	protected Box fence(String left, String right, Box body, int level) throws Unsupported {
+		float em = em(level);
+		float delta = Math.max(body.height-AXIS*em, body.depth+AXIS*em);
+		float size = Math.max(2*delta*0.901f, 2*delta-0.5f*em);
+		Group g = new Group();
+		Box l = delimiter(left, size, level);
+		Box r = delimiter(right, size, level);
+		g.add(l, 0, 0);
+		g.add(body, l.width, 0);
+		g.add(r, l.width+body.width, 0);
+		g.width = l.width+body.width+r.width;
+		return g;
+	}
+
+	/** Delimiter glyph stretched vertically to size if it's smaller,
+	 *  centered on the axis; "" is a little blank space.
+	 */
+	protected Box delimiter(String text, float size, int level) throws Unsupported {
+		float em = em(level);
+		if ( text.isEmpty() ) {
+			return new Kern(NULL_DELIMITER*em);
+		}
+		Glyphs g = glyphs(text, Font.PLAIN, em);
+		float natural = g.inkTop-g.inkBottom;
+		float scale = natural>0 ? Math.max(1f, size/natural) : 1f;
+		float center = (g.inkTop+g.inkBottom)/2;
+		AffineTransform t = AffineTransform.getTranslateInstance(0, -AXIS*em);
+		t.scale(1, scale);
+		t.translate(0, center);
+		return new Glyphs(t.createTransformedShape(g.outline), g.width);
+	}
+
+	protected static int getAtomClass(Node n) {
+		if ( n instanceof Space ) return -1;
+		if ( n instanceof Script ) return getAtomClass(((Script)n).base);
+		if ( n instanceof Frac || n instanceof Fenced || n instanceof Table ) return INNER;
+		if ( !(n instanceof Sym) ) return ORD;
+		Sym s = (Sym)n;
+		if ( s.size>0 ) {
+			return s.kind==Kind.OPEN ? OPEN : s.kind==Kind.CLOSE ? CLOSE : ORD;
+		}
+		switch ( s.kind ) {
+			case OP :
+			case FUNC : return OP;
+			case BIN : return BIN;
+			case REL : return REL;
+			case OPEN : return OPEN;
+			case CLOSE : return CLOSE;
+			case PUNCT : return PUNCT;
+			default : return ORD;
+		}
+	}
+
+	protected float em(int level) {
+		return fontsize*scales[level];
+	}
+
+	protected Glyphs glyphs(String text, int fontStyle, float size) throws Unsupported {
+		Font font = fonts.computeIfAbsent(fontStyle+":"+size, k -> new Font(fontFamily, fontStyle, 1).deriveFont(size));
+		if ( font.canDisplayUpTo(text)>=0 ) {
+			throw new Unsupported("glyph "+text);
+		}
+		GlyphVector gv = font.createGlyphVector(frc, text);
+		return new Glyphs(gv.getOutline(), (float)gv.getGlyphPosition(gv.getNumGlyphs()).getX());
+	}
+
+	/** svg holding path; viewBox widens to the left or right if ink hangs
+	 *  outside the box (italic f), but height is always the box's so the
+	 *  baseline stays where the metrics say it is.
+	 */
+	public static String toSVG(Path2D path, float width, float height) {
+		Rectangle2D ink = path.getBounds2D();
+		float left = Math.min(0, (float)ink.getMinX());
+		float right = Math.max(width, (float)ink.getMaxX());
+		StringBuilder buf = new StringBuilder();
+		buf.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(format(right-left))
+			.append("pt\" height=\"").append(format(height))
+			.append("pt\" viewBox=\"").append(format(left)).append(" 0 ").append(format(right-left))
+			.append(' ').append(format(height)).append("\"><path");
+		if ( path.getWindingRule()==PathIterator.WIND_EVEN_ODD ) {
+			buf.append(" fill-rule=\"evenodd\"");
+		}
+		buf.append(" d=\"");
+		float[] c = new float[6];
+		for (PathIterator it = path.getPathIterator(null); !it.isDone(); it.next()) {
+			switch ( it.currentSegment(c) ) {
+				case PathIterator.SEG_MOVETO : appendPoints(buf, 'M', c, 2); break;
+				case PathIterator.SEG_LINETO : appendPoints(buf, 'L', c, 2); break;
+				case PathIterator.SEG_QUADTO : appendPoints(buf, 'Q', c, 4); break;
+				case PathIterator.SEG_CUBICTO : appendPoints(buf, 'C', c, 6); break;
+				case PathIterator.SEG_CLOSE : buf.append('Z'); break;
+			}
+		}
+		buf.append("\"/></svg>\n");
+		return buf.toString();
+	}
+
+	protected static void appendPoints(StringBuilder buf, char op, float[] coords, int n) {
+		buf.append(op);
+		for (int i = 0; i<n; i++) {
+			if ( i>0 ) buf.append(' ');
+			buf.append(format(coords[i]));
+		}
+	}
+
+	/** Two decimals in pt is plenty; no trailing zeros */
+	protected static String format(float v) {
+		String s = Float.toString(Math.round(v*100)/100f);
+		if ( s.endsWith(".0") ) s = s.substring(0, s.length()-2);
+		return s.equals("-0") ? "0" : s;
+	}
+}
@@ -0,0 +1,196 @@
+package us.parr.bookish.translate;
+
+import java.util.List;
+import java.util.Locale;
+
+import static us.parr.bookish.translate.MathParser.Accent;
+import static us.parr.bookish.translate.MathParser.Fenced;
+import static us.parr.bookish.translate.MathParser.Frac;
+import static us.parr.bookish.translate.MathParser.Node;
+import static us.parr.bookish.translate.MathParser.Row;
+import static us.parr.bookish.translate.MathParser.Script;
+import static us.parr.bookish.translate.MathParser.Space;
+import static us.parr.bookish.translate.MathParser.Style;
+import static us.parr.bookish.translate.MathParser.Styled;
+import static us.parr.bookish.translate.MathParser.Sym;
+import static us.parr.bookish.translate.MathParser.Table;
+import static us.parr.bookish.translate.MathParser.Unsupported;
+
+/** Translate the latex math MathParser understands to presentation
+ *  MathML for -math mathml so browsers typeset equations themselves; no
+ *  latex runs, no image files. The latex goes along as an annotation so
+ *  copy/paste (and screen readers that want it) get the original.
+ *  Anything MathParser rejects gets null and the caller falls back on svg.
+ */
+public class MathMLWriter {
+	protected final StringBuilder buf = new StringBuilder();
+
+	/** Return <math> element for latex or null if we can't translate it */
+	public static String toMathML(String latex, boolean display) {
+		try {
+			Node tree = MathParser.parse(latex.trim());
+			MathMLWriter writer = new MathMLWriter();
+			writer.buf.append("<math xmlns=\"http://www.w3.org/1998/Math/MathML\" display=\"")
+				.append(display ? "block" : "inline").append("\"><semantics>");
+			writer.write(tree, null);
+			writer.buf.append("<annotation encoding=\"application/x-tex\">");
+			escape(writer.buf, latex.trim());
+			writer.buf.append("</annotation></semantics></math>");
+			return writer.buf.toString();
+		}
+		catch (Unsupported u) {
+			return null;
+		}
+	}
+
+	protected void write(Node n, Style style) {
+		if ( n instanceof Sym ) {
+			writeSym((Sym)n, style);
+		}
+		else if ( n instanceof Row ) {
+			buf.append("<mrow>");
+			for (Node kid : ((Row)n).elements) {
+				write(kid, style);
+			}
+			buf.append("</mrow>");
+		}
+		else if ( n instanceof Script ) {
+			writeScript((Script)n, style);
+		}
+		else if ( n instanceof Frac ) {
+			buf.append("<mfrac>");
+			write(((Frac)n).num, style);
+			write(((Frac)n).den, style);
+			buf.append("</mfrac>");
+		}
+		else if ( n instanceof Styled ) {
+			write(((Styled)n).body, ((Styled)n).style);
+		}
+		else if ( n instanceof Fenced ) {
+			Fenced f = (Fenced)n;
+			writeFenced(f.left, f.right, () -> write(f.body, style));
+		}
+		else if ( n instanceof Table ) {
+			Table t = (Table)n;
+			writeFenced(t.left, t.right, () -> writeTable(t, style));
+		}
+		else if ( n instanceof Accent ) {
+			buf.append("<mover accent=\"true\">");
+			write(((Accent)n).base, style);
+			element("mo", ((Accent)n).accent, "");
+			buf.append("</mover>");
+		}
+		else if ( n instanceof Space ) {
+			buf.append("<mspace width=\"").append(String.format(Locale.US, "%.3f", ((Space)n).em)).append("em\"/>");
+		}
+	}
+
+	protected void writeSym(Sym s, Style style) {
+		String variant = "";
+		if ( style==Style.BOLD ) {
+			variant = " mathvariant=\"bold\"";
+		}
+		else if ( style==Style.ROMAN ) {
+			variant = " mathvariant=\"normal\"";
+		}
+		else if ( style==Style.ITALIC ) {
+			variant = " mathvariant=\"italic\"";
+		}
+		if ( s.size>0 ) { // \big( etc...
+			element("mo", s.text, " minsize=\""+s.size+"em\" maxsize=\""+s.size+"em\"");
+			return;
+		}
+		switch ( s.kind ) {
+			case VAR :
+				element("mi", s.text, variant);
+				break;
+			case NUM :
+				element("mn", s.text, variant);
+				break;
+			case ORD :
+				if ( Character.isLetter(s.text.charAt(0)) || "\u221e\u2202\u2207\u2205\u210f\u2032".contains(s.text) ) {
+					element("mi", s.text, variant.isEmpty() ? " mathvariant=\"normal\"" : variant);
+				}
+				else {
+					element("mo", s.text, "");
+				}
+				break;
+			case TEXT :
+				element("mtext", s.text, "");
+				break;
+			case FUNC :
+				element(s.limits ? "mo" : "mi", s.text, s.limits ? " movablelimits=\"true\"" : "");
+				break;
+			case OPEN :
+			case CLOSE : // operator dictionary stretches these; latex doesn't
+				element("mo", s.text, " stretchy=\"false\"");
+				break;
+			default : // BIN, REL, PUNCT, OP
+				element("mo", s.text, "");
+		}
+	}
+
+	protected void writeScript(Script s, Style style) {
+		boolean limits = s.base instanceof Sym && ((Sym)s.base).limits; // munder etc... movable in inline math
+		String tag;
+		if ( s.sub!=null && s.sup!=null ) tag = limits ? "munderover" : "msubsup";
+		else if ( s.sub!=null ) tag = limits ? "munder" : "msub";
+		else tag = limits ? "mover" : "msup";
+		buf.append('<').append(tag).append('>');
+		write(s.base, style);
+		if ( s.sub!=null ) write(s.sub, style);
+		if ( s.sup!=null ) write(s.sup, style);
+		buf.append("</").append(tag).append('>');
+	}
+
+	protected void writeFenced(String left, String right, Runnable body) {
+		if ( left.isEmpty() && right.isEmpty() ) {
+			body.run();
+			return;
+		}
+		buf.append("<mrow>");
+		if ( !left.isEmpty() ) element("mo", left, " fence=\"true\" stretchy=\"true\"");
+		body.run();
+		if ( !right.isEmpty() ) element("mo", right, " fence=\"true\" stretchy=\"true\"");
+		buf.append("</mrow>");
+	}
+
+	protected void writeTable(Table t, Style style) {
+		StringBuilder align = new StringBuilder();
+		for (char c : t.align.toCharArray()) {
+			if ( align.length()>0 ) align.append(' ');
+			align.append(c=='l' ? "left" : c=='r' ? "right" : "center");
+		}
+		buf.append("<mtable columnalign=\"").append(align).append("\">");
+		for (List<Node> row : t.rows) {
+			buf.append("<mtr>");
+			for (Node cell : row) {
+				buf.append("<mtd>");
+				write(cell, style);
+				buf.append("</mtd>");
+			}
+			buf.append("</mtr>");
+		}
+		buf.append("</mtable>");
+	}
+
+	protected void element(String tag, String text, String attrs) {
+		buf.append('<').append(tag).append(attrs).append('>');
+		escape(buf, text);
+		buf.append("</").append(tag).append('>');
+	}
+
+	/** Escape markup and write non-ASCII as character references so the
+	 *  html comes out right whatever the platform encoding.
+	 */
+	protected static void escape(StringBuilder buf, String s) {
+		for (int i = 0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if ( c=='&' ) buf.append("&amp;");
+			else if ( c=='<' ) buf.append("&lt;");
+			else if ( c=='>' ) buf.append("&gt;");
+			else if ( c>127 ) buf.append("&#x").append(Integer.toHexString(c).toUpperCase()).append(';');
+			else buf.append(c);
+		}
+	}
+}
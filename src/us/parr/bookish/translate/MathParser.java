@@ -0,0 +1,546 @@
+package us.parr.bookish.translate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Recursive-descent parser for the subset of latex math we can typeset
+ *  without latex: letters, numbers, Greek, operators and relations,
+ *  sub/superscripts, \frac, \mathbf and friends, \sum and other big
+ *  operators, \left(...\right), accents, and the matrix/cases/array
+ *  environments. Builds a tree of Nodes for JavaMathRenderer.
+ *
+ *  Anything else throws Unsupported naming the construct (e.g., "\sqrt",
+ *  "env eqnarray") so the caller can fall back on latex and count what
+ *  we'd need to add.
+ */
+public class MathParser {
+	/** Roughly TeX's atom types; they decide spacing and fonts */
+	public enum Kind {VAR, NUM, ORD, BIN, REL, OPEN, CLOSE, PUNCT, OP, FUNC, TEXT}
+
+	public enum Style {BOLD, ROMAN, ITALIC}
+
+	public static class Unsupported extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public final String construct;
+
+		public Unsupported(String construct) {
+			super("can't typeset "+construct+" without latex");
+			this.construct = construct;
+		}
+	}
+
+	public static abstract class Node { }
+
+	/** One symbol, or a run of text for \text and function names */
+	public static class Sym extends Node {
+		public final String text;
+		public final Kind kind;
+		/** Big operators and \lim etc... put scripts above and below in display math */
+		public boolean limits;
+		/** \big( and friends: delimiter height in ems; 0 means natural size */
+		public float size;
+		public Sym(String text, Kind kind) { this.text = text; this.kind = kind; }
+	}
+
+	public static class Row extends Node {
+		public final List<Node> elements;
+		public Row(List<Node> elements) { this.elements = elements; }
+	}
+
+	public static class Script extends Node {
+		public final Node base, sub, sup; // sub or sup can be null
+		public Script(Node base, Node sub, Node sup) { this.base = base; this.sub = sub; this.sup = sup; }
+	}
+
+	public static class Frac extends Node {
+		public final Node num, den;
+		public Frac(Node num, Node den) { this.num = num; this.den = den; }
+	}
+
+	/** \mathbf{...}, \mathrm{...}, {\bf ...} */
+	public static class Styled extends Node {
+		public final Style style;
+		public final Node body;
+		public Styled(Style style, Node body) { this.style = style; this.body = body; }
+	}
+
+	/** \left(...\right); left or right is "" for \left. */
+	public static class Fenced extends Node {
+		public final String left, right;
+		public final Node body;
+		public Fenced(String left, String right, Node body) { this.left = left; this.right = right; this.body = body; }
+	}
+
+	/** matrix environments, cases, and array; align has one of "lcr" per column */
+	public static class Table extends Node {
+		public final List<List<Node>> rows;
+		public final String align;
+		public final String left, right;
+		public Table(List<List<Node>> rows, String align, String left, String right) {
+			this.rows = rows;
+			this.align = align;
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	public static class Space extends Node {
+		public final float em;
+		public Space(float em) { this.em = em; }
+	}
+
+	/** \hat{x} etc... */
+	public static class Accent extends Node {
+		public final String accent;
+		public final Node base;
+		public Accent(String accent, Node base) { this.accent = accent; this.base = base; }
+	}
+
+	public static final Map<String,Sym> commands = new HashMap<>();
+	static {
+		String[] greek = {"alpha","\u03b1", "beta","\u03b2", "gamma","\u03b3", "delta","\u03b4", "epsilon","\u03f5", "varepsilon","\u03b5",
+		                  "zeta","\u03b6", "eta","\u03b7", "theta","\u03b8", "vartheta","\u03d1", "iota","\u03b9", "kappa","\u03ba",
+		                  "lambda","\u03bb", "mu","\u03bc", "nu","\u03bd", "xi","\u03be", "pi","\u03c0", "rho","\u03c1", "sigma","\u03c3",
+		                  "tau","\u03c4", "upsilon","\u03c5", "phi","\u03d5", "varphi","\u03c6", "chi","\u03c7", "psi","\u03c8", "omega","\u03c9",
+		                  "ell","\u2113"};
+		define(greek, Kind.VAR);
+		String[] ord = {"Gamma","\u0393", "Delta","\u0394", "Theta","\u0398", "Lambda","\u039b", "Xi","\u039e", "Pi","\u03a0", "Sigma","\u03a3",
+		                "Upsilon","\u03a5", "Phi","\u03a6", "Psi","\u03a8", "Omega","\u03a9",
+		                "infty","\u221e", "partial","\u2202", "nabla","\u2207", "ldots","\u2026", "dots","\u2026", "cdots","\u22ef",
+		                "vdots","\u22ee", "ddots","\u22f1", "prime","\u2032", "forall","\u2200", "exists","\u2203", "emptyset","\u2205",
+		                "hbar","\u210f", "top","\u22a4", "|","\u2016", "Vert","\u2016", "vert","|", "#","#", "%","%", "$","$"};
+		define(ord, Kind.ORD);
+		String[] bin = {"pm","\u00b1", "mp","\u2213", "times","\u00d7", "cdot","\u22c5", "circ","\u2218", "bigcirc","\u25ef", "otimes","\u2297",
+		                "oplus","\u2295", "odot","\u2299", "oslash","\u2298", "ast","\u2217", "setminus","\u2216", "cup","\u222a",
+		                "cap","\u2229", "wedge","\u2227", "vee","\u2228", "div","\u00f7"};
+		define(bin, Kind.BIN);
+		String[] rel = {"le","\u2264", "leq","\u2264", "ge","\u2265", "geq","\u2265", "ne","\u2260", "neq","\u2260", "approx","\u2248",
+		                "equiv","\u2261", "sim","\u223c", "simeq","\u2243", "propto","\u221d", "in","\u2208", "notin","\u2209",
+		                "subset","\u2282", "subseteq","\u2286", "supset","\u2283", "supseteq","\u2287", "to","\u2192",
+		                "rightarrow","\u2192", "leftarrow","\u2190", "Rightarrow","\u21d2", "Leftarrow","\u21d0",
+		                "Leftrightarrow","\u21d4", "iff","\u21d4", "mapsto","\u21a6", "mid","\u2223", "ll","\u226a", "gg","\u226b",
+		                "perp","\u22a5"};
+		define(rel, Kind.REL);
+		String[] open = {"{","{", "langle","\u27e8", "lfloor","\u230a", "lceil","\u2308"};
+		define(open, Kind.OPEN);
+		String[] close = {"}","}", "rangle","\u27e9", "rfloor","\u230b", "rceil","\u2309"};
+		define(close, Kind.CLOSE);
+		String[] ops = {"sum","\u2211", "prod","\u220f", "bigcup","\u22c3", "bigcap","\u22c2", "int","\u222b", "iint","\u222c", "oint","\u222e"};
+		define(ops, Kind.OP);
+		for (String op : new String[] {"sum", "prod", "bigcup", "bigcap"}) {
+			commands.get(op).limits = true;
+		}
+		for (String f : new String[] {"sin","cos","tan","sec","csc","cot","sinh","cosh","tanh","arcsin","arccos",
+		                              "arctan","log","ln","exp","arg","dim","ker","deg"}) {
+			commands.put(f, new Sym(f, Kind.FUNC));
+		}
+		for (String f : new String[] {"lim","max","min","sup","inf","det","Pr","gcd"}) {
+			Sym s = new Sym(f, Kind.FUNC);
+			s.limits = true;
+			commands.put(f, s);
+		}
+	}
+
+	public static final Map<String,Float> spaces = new HashMap<String,Float>() {{
+		put(",", 3/18f);
+		put(":", 4/18f);
+		put(">", 4/18f);
+		put(";", 5/18f);
+		put("!", -3/18f);
+		put(" ", 1/3f);
+		put("quad", 1f);
+		put("qquad", 2f);
+	}};
+
+	public static final Map<String,String> accents = new HashMap<String,String>() {{
+		put("hat", "\u02c6");
+		put("widehat", "\u02c6");
+		put("tilde", "\u02dc");
+		put("widetilde", "\u02dc");
+		put("bar", "\u00af");
+		put("overline", "\u00af");
+		put("dot", "\u02d9");
+		put("ddot", "\u00a8");
+	}};
+
+	public static final Map<String,Float> bigDelimiters = new HashMap<String,Float>() {{
+		for (String suffix : new String[] {"", "l", "r", "m"}) {
+			put("big"+suffix, 1.2f);
+			put("Big"+suffix, 1.8f);
+			put("bigg"+suffix, 2.4f);
+			put("Bigg"+suffix, 3.0f);
+		}
+	}};
+
+	/** Blackboard bold letters that are in the BMP (and so in most fonts) */
+	public static final Map<Character,String> blackboard = new HashMap<Character,String>() {{
+		put('R', "\u211d");
+		put('N', "\u2115");
+		put('Z', "\u2124");
+		put('Q', "\u211a");
+		put('C', "\u2102");
+		put('P', "\u2119");
+		put('H', "\u210d");
+	}};
+
+	/** Environment to (left,right) delimiters */
+	public static final Map<String,String[]> matrices = new HashMap<String,String[]>() {{
+		put("matrix", new String[] {"", ""});
+		put("pmatrix", new String[] {"(", ")"});
+		put("bmatrix", new String[] {"[", "]"});
+		put("Bmatrix", new String[] {"{", "}"});
+		put("vmatrix", new String[] {"|", "|"});
+		put("Vmatrix", new String[] {"\u2016", "\u2016"});
+	}};
+
+	protected final String latex;
+	protected int p = 0;
+
+	protected MathParser(String latex) {
+		this.latex = latex;
+	}
+
+	public static Node parse(String latex) throws Unsupported {
+		MathParser parser = new MathParser(latex);
+		Row row = parser.row();
+		if ( parser.p<latex.length() ) { // stopped at a \\, &, }, \right, or \end
+			throw new Unsupported(parser.peekStop());
+		}
+		return row;
+	}
+
+	protected static void define(String[] pairs, Kind kind) {
+		for (int i = 0; i<pairs.length; i += 2) {
+			commands.put(pairs[i], new Sym(pairs[i+1], kind));
+		}
+	}
+
+	/** Atoms until end of input, '}', '&', \\, \right, or \end */
+	protected Row row() throws Unsupported {
+		List<Node> elements = new ArrayList<>();
+		while ( true ) {
+			skipSpaces();
+			if ( p>=latex.length() || peekStop()!=null ) {
+				return new Row(elements);
+			}
+			elements.add(atom());
+		}
+	}
+
+	/** What stops a row at p, if anything */
+	protected String peekStop() {
+		if ( p>=latex.length() ) return null;
+		char c = latex.charAt(p);
+		if ( c=='}' || c=='&' ) return String.valueOf(c);
+		if ( c=='\\' ) {
+			String cmd = peekCommand();
+			if ( cmd.equals("\\") || cmd.equals("right") || cmd.equals("end") ) {
+				return "\\"+cmd;
+			}
+		}
+		return null;
+	}
+
+	/** base followed by any _x, ^y, and primes */
+	protected Node atom() throws Unsupported {
+		Node base = base();
+		Node sub = null, sup = null;
+		while ( true ) {
+			skipSpaces();
+			if ( p>=latex.length() ) break;
+			char c = latex.charAt(p);
+			if ( c=='_' && sub==null ) {
+				p++;
+				sub = arg();
+			}
+			else if ( c=='^' && sup==null ) {
+				p++;
+				sup = arg();
+			}
+			else if ( c=='\'' && sup==null ) { // f'' is f^{\prime\prime}
+				StringBuilder primes = new StringBuilder();
+				while ( p<latex.length() && latex.charAt(p)=='\'' ) {
+					primes.append("\u2032");
+					p++;
+				}
+				sup = new Sym(primes.toString(), Kind.ORD);
+			}
+			else if ( c=='_' || c=='^' || c=='\'' ) {
+				throw new Unsupported("double script");
+			}
+			else break;
+		}
+		if ( sub==null && sup==null ) {
+			return base;
+		}
+		return new Script(base, sub, sup);
+	}
+
+	/** {...} or a single symbol, as after ^ or \frac */
+	protected Node arg() throws Unsupported {
+		skipSpaces();
+		if ( p>=latex.length() ) {
+			throw new Unsupported("missing argument");
+		}
+		char c = latex.charAt(p);
+		if ( c=='{' ) {
+			return group();
+		}
+		if ( Character.isLetterOrDigit(c) ) { // x^12 is x^1 2
+			p++;
+			return new Sym(String.valueOf(c), Character.isLetter(c) ? Kind.VAR : Kind.NUM);
+		}
+		return base();
+	}
+
+	protected Row group() throws Unsupported {
+		expect('{');
+		Row row = row();
+		expect('}');
+		return row;
+	}
+
+	protected Node base() throws Unsupported {
+		char c = latex.charAt(p);
+		if ( Character.isLetter(c) && c<128 ) {
+			p++;
+			return new Sym(String.valueOf(c), Kind.VAR);
+		}
+		if ( Character.isDigit(c) ) {
+			int start = p;
+			while ( p<latex.length() && (Character.isDigit(latex.charAt(p)) || latex.charAt(p)=='.') ) p++;
+			return new Sym(latex.substring(start, p), Kind.NUM);
+		}
+		p++;
+		switch ( c ) {
+			case '{' : p--; return group();
+			case '\\' : p--; return command();
+			case '+' : return new Sym("+", Kind.BIN);
+			case '-' : return new Sym("\u2212", Kind.BIN);
+			case '*' : return new Sym("\u2217", Kind.BIN);
+			case '=' : case '<' : case '>' : case ':' :
+				return new Sym(String.valueOf(c), Kind.REL);
+			case '(' : case '[' :
+				return new Sym(String.valueOf(c), Kind.OPEN);
+			case ')' : case ']' : case '!' : case '?' :
+				return new Sym(String.valueOf(c), Kind.CLOSE);
+			case ',' : case ';' :
+				return new Sym(String.valueOf(c), Kind.PUNCT);
+			case '|' : case '/' : case '.' :
+				return new Sym(String.valueOf(c), Kind.ORD);
+			case '~' :
+				return new Space(1/3f);
+		}
+		p--;
+		throw new Unsupported("'"+c+"'");
+	}
+
+	protected Node command() throws Unsupported {
+		String cmd = peekCommand();
+		p += 1+cmd.length();
+		Sym sym = commands.get(cmd);
+		if ( sym!=null ) {
+			return sym;
+		}
+		Float space = spaces.get(cmd);
+		if ( space!=null ) {
+			return new Space(space);
+		}
+		String accent = accents.get(cmd);
+		if ( accent!=null ) {
+			return new Accent(accent, arg());
+		}
+		Float bigSize = bigDelimiters.get(cmd);
+		if ( bigSize!=null ) {
+			Sym delim = delimiter(cmd);
+			Sym big = new Sym(delim.text, cmd.endsWith("l") ? Kind.OPEN : cmd.endsWith("r") ? Kind.CLOSE : delim.kind);
+			big.size = bigSize;
+			return big;
+		}
+		switch ( cmd ) {
+			case "frac" :
+			case "dfrac" :
+			case "tfrac" :
+				return new Frac(arg(), arg());
+			case "mathbf" :
+			case "boldsymbol" :
+			case "bm" :
+			case "vec" : // preamble makes \vec \mathbf
+				return new Styled(Style.BOLD, arg());
+			case "mathrm" :
+				return new Styled(Style.ROMAN, arg());
+			case "mathit" :
+				return new Styled(Style.ITALIC, arg());
+			case "bf" : // {\bf x} switches font for rest of group
+				return new Styled(Style.BOLD, row());
+			case "rm" :
+				return new Styled(Style.ROMAN, row());
+			case "it" :
+				return new Styled(Style.ITALIC, row());
+			case "text" :
+			case "textrm" :
+			case "mbox" :
+				return new Sym(literal(), Kind.TEXT);
+			case "operatorname" :
+				boolean limits = p<latex.length() && latex.charAt(p)=='*';
+				if ( limits ) p++;
+				Sym f = new Sym(literal(), Kind.FUNC);
+				f.limits = limits;
+				return f;
+			case "mathbb" :
+				StringBuilder buf = new StringBuilder();
+				for (char letter : literal().toCharArray()) {
+					String bb = blackboard.get(letter);
+					if ( bb==null ) {
+						throw new Unsupported("\\mathbb{"+letter+"}");
+					}
+					buf.append(bb);
+				}
+				return new Sym(buf.toString(), Kind.ORD);
+			case "left" :
+				Sym left = delimiter(cmd);
+				Row body = row();
+				if ( !peekCommand().equals("right") ) {
+					throw new Unsupported("\\left without \\right");
+				}
+				p += 1+"right".length();
+				Sym right = delimiter("right");
+				return new Fenced(left.text, right.text, body);
+			case "begin" :
+				return environment();
+		}
+		throw new Unsupported("\\"+cmd);
+	}
+
+	/** Delimiter after \left, \right, \big, ...; "." is none */
+	protected Sym delimiter(String after) throws Unsupported {
+		skipSpaces();
+		if ( p>=latex.length() ) {
+			throw new Unsupported("\\"+after+" without delimiter");
+		}
+		char c = latex.charAt(p);
+		if ( c=='.' ) {
+			p++;
+			return new Sym("", Kind.ORD);
+		}
+		if ( "()[]|/".indexOf(c)>=0 ) {
+			p++;
+			return new Sym(String.valueOf(c), c=='(' || c=='[' ? Kind.OPEN : c==')' || c==']' ? Kind.CLOSE : Kind.ORD);
+		}
+		if ( c=='\\' ) {
+			String cmd = peekCommand();
+			Sym sym = commands.get(cmd);
+			if ( sym!=null && (sym.kind==Kind.OPEN || sym.kind==Kind.CLOSE || cmd.equals("|") ||
+			                   cmd.equals("vert") || cmd.equals("Vert")) ) {
+				p += 1+cmd.length();
+				return sym;
+			}
+		}
+		throw new Unsupported("\\"+after+" delimiter");
+	}
+
+	/** After \begin: matrix and friends, cases, and array with l/c/r columns */
+	protected Node environment() throws Unsupported {
+		String env = literal();
+		String align;
+		String left = "", right = "";
+		if ( matrices.containsKey(env) ) {
+			left = matrices.get(env)[0];
+			right = matrices.get(env)[1];
+			align = "c";
+		}
+		else if ( env.equals("cases") ) {
+			left = "{";
+			align = "ll";
+		}
+		else if ( env.equals("array") ) {
+			align = literal().replace(" ", "");
+			if ( align.isEmpty() || !align.matches("[lcr]+") ) {
+				throw new Unsupported("array columns {"+align+"}");
+			}
+		}
+		else {
+			throw new Unsupported("env "+env);
+		}
+		List<List<Node>> rows = new ArrayList<>();
+		List<Node> cells = new ArrayList<>();
+		while ( true ) {
+			cells.add(row());
+			if ( p>=latex.length() ) {
+				throw new Unsupported("env "+env+" without \\end");
+			}
+			if ( latex.charAt(p)=='&' ) {
+				p++;
+				continue;
+			}
+			if ( latex.charAt(p)!='\\' ) {
+				throw new Unsupported("'"+latex.charAt(p)+"' in "+env);
+			}
+			String cmd = peekCommand();
+			p += 1+cmd.length();
+			if ( cmd.equals("\\") ) {
+				rows.add(cells);
+				cells = new ArrayList<>();
+				skipSpaces();
+				if ( p<latex.length() && latex.charAt(p)=='[' ) { // \\[2pt]; just ignore it
+					int end = latex.indexOf(']', p);
+					if ( end<0 ) throw new Unsupported("\\\\[");
+					p = end+1;
+				}
+			}
+			else if ( cmd.equals("end") ) {
+				if ( !literal().equals(env) ) {
+					throw new Unsupported("env "+env+" with wrong \\end");
+				}
+				if ( cells.size()>1 || !((Row)cells.get(0)).elements.isEmpty() ) {
+					rows.add(cells); // else trailing \\ before \end
+				}
+				break;
+			}
+			else {
+				throw new Unsupported("\\"+cmd+" in "+env);
+			}
+		}
+		return new Table(rows, align, left, right);
+	}
+
+	/** {chars} with no nested groups, as for \text and \begin */
+	protected String literal() throws Unsupported {
+		skipSpaces();
+		expect('{');
+		int end = latex.indexOf('}', p);
+		if ( end<0 || latex.substring(p, end).matches(".*[{\\\\$].*") ) {
+			throw new Unsupported("nested text");
+		}
+		String text = latex.substring(p, end);
+		p = end+1;
+		return text;
+	}
+
+	protected void expect(char c) throws Unsupported {
+		skipSpaces();
+		if ( p>=latex.length() || latex.charAt(p)!=c ) {
+			throw new Unsupported("missing '"+c+"'");
+		}
+		p++;
+	}
+
+	/** Name of \command at p, which is a run of letters or a single other char */
+	protected String peekCommand() {
+		int start = p+1;
+		if ( start>=latex.length() ) {
+			return "";
+		}
+		int end = start;
+		while ( end<latex.length() && Character.isLetter(latex.charAt(end)) ) end++;
+		if ( end==start ) end++; // \, \{ etc...
+		return latex.substring(start, end);
+	}
+
+	protected void skipSpaces() {
+		while ( p<latex.length() && Character.isWhitespace(latex.charAt(p)) ) p++;
+	}
+}
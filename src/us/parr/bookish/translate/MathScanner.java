@@ -0,0 +1,283 @@
+package us.parr.bookish.translate;
+
+import us.parr.bookish.model.EqnExpr;
+import us.parr.bookish.model.EqnScript;
+import us.parr.bookish.model.EqnSym;
+import us.parr.bookish.model.EqnVar;
+import us.parr.bookish.model.EqnVecVar;
+import us.parr.bookish.model.Join;
+import us.parr.bookish.model.OutputModelObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** One pass over inline math to see if it's simple enough to render as
+ *  HTML rather than typesetting with latex: variables, numbers, Greek
+ *  letters, \mathbf{x}, sub/superscripts like x_{i}^{(k)} or
+ *  \mathbf{x}^T, parens, and a few operators, as in f(x) = \alpha x^2 + 1.
+ *  Anything else (\frac, \sum, unknown commands, ...) and scan() returns
+ *  null so latex gets it.
+ */
+public class MathScanner {
+	/** Longer than this and it's not "inline trivial" anymore */
+	public static final int MAX_LEN = 60;
+
+	/** Command to HTML for lowercase Greek, which is italic like variables */
+	public static final Map<String,String> greekLower = new HashMap<String,String>() {{
+		String[] names = {"alpha","beta","gamma","delta","epsilon","zeta","eta","theta","iota","kappa",
+		                  "lambda","mu","nu","xi","pi","rho","sigma","tau","upsilon","phi","chi","psi","omega"};
+		for (String n : names) put(n, "&"+n+";");
+		put("varepsilon", "&epsilon;");
+		put("vartheta", "&thetasym;");
+		put("varphi", "&phi;");
+		put("varsigma", "&sigmaf;");
+		put("ell", "&#8467;");
+	}};
+
+	/** Upright symbols: capital Greek and friends */
+	public static final Map<String,String> symbols = new HashMap<String,String>() {{
+		String[] names = {"Gamma","Delta","Theta","Lambda","Xi","Pi","Sigma","Upsilon","Phi","Psi","Omega"};
+		for (String n : names) put(n, "&"+n+";");
+		put("infty", "&infin;");
+		put("partial", "&part;");
+		put("nabla", "&nabla;");
+		put("ldots", "&hellip;");
+		put("dots", "&hellip;");
+		put("cdots", "&#8943;");
+		put("prime", "&prime;");
+		put("{", "{");
+		put("}", "}");
+		put("|", "&#8214;");
+		put(",", "&thinsp;");
+		put(";", "&ensp;");
+		put(" ", "&nbsp;");
+		put("quad", "&emsp;");
+	}};
+
+	/** Binary operators and relations; these get a little space around them */
+	public static final Map<String,String> operators = new HashMap<String,String>() {{
+		put("+", "+");
+		put("-", "&minus;");
+		put("=", "=");
+		put("<", "&lt;");
+		put(">", "&gt;");
+		put("le", "&le;");
+		put("leq", "&le;");
+		put("ge", "&ge;");
+		put("geq", "&ge;");
+		put("ne", "&ne;");
+		put("neq", "&ne;");
+		put("approx", "&asymp;");
+		put("cdot", "&middot;");
+		put("times", "&times;");
+		put("in", "&isin;");
+		put("to", "&rarr;");
+		put("rightarrow", "&rarr;");
+	}};
+
+	/** Punctuation we pass through as is */
+	public static final String PUNCT = "()[],;|/!.:";
+
+	protected final String eqn;
+	protected int p = 0;
+
+	protected MathScanner(String eqn) {
+		this.eqn = eqn;
+	}
+
+	/** Return HTML model for eqn or null if latex should do it */
+	public static OutputModelObject scan(String eqn) {
+		if ( eqn.length()>MAX_LEN ) {
+			return null;
+		}
+		MathScanner scanner = new MathScanner(eqn);
+		List<OutputModelObject> elements = scanner.list();
+		if ( elements==null || scanner.p<eqn.length() || elements.isEmpty() ) {
+			return null;
+		}
+		return new EqnExpr(elements, eqn);
+	}
+
+	/** Atoms up to end of input or closing '}'; null if not simple */
+	protected List<OutputModelObject> list() {
+		List<OutputModelObject> elements = new ArrayList<>();
+		boolean unary = true; // '-' at start or after an operator is a sign
+		while ( true ) {
+			skipSpaces();
+			if ( p>=eqn.length() || eqn.charAt(p)=='}' ) {
+				return elements;
+			}
+			char c = eqn.charAt(p);
+			String op = null;
+			if ( c=='\\' ) {
+				String cmd = peekCommand();
+				op = operators.get(cmd);
+				if ( op!=null ) p += 1+cmd.length();
+			}
+			else if ( operators.containsKey(String.valueOf(c)) ) {
+				op = operators.get(String.valueOf(c));
+				p++;
+			}
+			if ( op!=null ) {
+				elements.add(new EqnSym(unary ? op : "&thinsp;"+op+"&thinsp;"));
+				unary = true;
+				continue;
+			}
+			OutputModelObject atom = atom();
+			if ( atom==null ) {
+				return null;
+			}
+			elements.add(atom);
+			unary = atom instanceof EqnSym && isOpening(((EqnSym)atom).text);
+		}
+	}
+
+	/** After these, '-' is a sign not an operator */
+	protected static boolean isOpening(String sym) {
+		return sym.equals("(") || sym.equals("[") || sym.equals("{") || sym.startsWith(",");
+	}
+
+	/** base followed by any _x and ^y */
+	protected OutputModelObject atom() {
+		OutputModelObject base = base();
+		if ( base==null ) {
+			return null;
+		}
+		OutputModelObject sub = null, sup = null;
+		while ( true ) {
+			skipSpaces();
+			if ( p>=eqn.length() ) break;
+			char c = eqn.charAt(p);
+			if ( c=='_' && sub==null ) {
+				p++;
+				sub = script();
+				if ( sub==null ) return null;
+			}
+			else if ( c=='^' && sup==null ) {
+				p++;
+				sup = script();
+				if ( sup==null ) return null;
+			}
+			else if ( c=='\'' && sup==null ) { // f' is f^\prime
+				int start = p;
+				while ( p<eqn.length() && eqn.charAt(p)=='\'' ) p++;
+				sup = new EqnSym(new String(new char[p-start]).replace("\0", "&prime;"));
+			}
+			else break;
+		}
+		if ( sub==null && sup==null ) {
+			return base;
+		}
+		return new EqnScript(base, sub, sup);
+	}
+
+	/** Single token or {...} after _ or ^ */
+	protected OutputModelObject script() {
+		skipSpaces();
+		if ( p>=eqn.length() ) {
+			return null;
+		}
+		if ( eqn.charAt(p)=='{' ) {
+			p++;
+			List<OutputModelObject> elements = list();
+			if ( elements==null || p>=eqn.length() || elements.isEmpty() ) {
+				return null;
+			}
+			p++; // '}'
+			return elements.size()==1 ? elements.get(0) : new Join(elements);
+		}
+		char c = eqn.charAt(p);
+		if ( Character.isLetterOrDigit(c) ) { // x_ij is x_i j in latex
+			p++;
+			return Character.isLetter(c) ? new EqnVar(String.valueOf(c)) : new EqnSym(String.valueOf(c));
+		}
+		if ( c=='-' || c=='+' ) { // x^-1 isn't legal latex but x^- is
+			p++;
+			return new EqnSym(operators.get(String.valueOf(c)));
+		}
+		return base();
+	}
+
+	protected OutputModelObject base() {
+		char c = eqn.charAt(p);
+		if ( Character.isLetter(c) && c<128 ) {
+			int start = p;
+			while ( p<eqn.length() && Character.isLetterOrDigit(eqn.charAt(p)) && eqn.charAt(p)<128 ) p++;
+			return new EqnVar(eqn.substring(start, p));
+		}
+		if ( Character.isDigit(c) ) {
+			int start = p;
+			while ( p<eqn.length() && (Character.isDigit(eqn.charAt(p)) || eqn.charAt(p)=='.') ) p++;
+			return new EqnSym(eqn.substring(start, p));
+		}
+		if ( c=='{' ) { // plain grouping
+			p++;
+			List<OutputModelObject> elements = list();
+			if ( elements==null || p>=eqn.length() || elements.isEmpty() ) {
+				return null;
+			}
+			p++;
+			return elements.size()==1 ? elements.get(0) : new Join(elements);
+		}
+		if ( c==',' ) { // latex puts a thin space after commas
+			p++;
+			return new EqnSym(",&thinsp;");
+		}
+		if ( PUNCT.indexOf(c)>=0 ) {
+			p++;
+			return new EqnSym(String.valueOf(c));
+		}
+		if ( c!='\\' ) {
+			return null; // &, #, ~, ...
+		}
+		String cmd = peekCommand();
+		p += 1+cmd.length();
+		if ( greekLower.containsKey(cmd) ) {
+			return new EqnVar(greekLower.get(cmd));
+		}
+		if ( symbols.containsKey(cmd) ) {
+			return new EqnSym(symbols.get(cmd));
+		}
+		if ( cmd.equals("mathbf") || cmd.equals("vec") || cmd.equals("mathrm") ) {
+			String arg = letters();
+			if ( arg==null ) {
+				return null;
+			}
+			return cmd.equals("mathrm") ? new EqnSym(arg) : new EqnVecVar(arg);
+		}
+		return null;
+	}
+
+	/** {letters} argument to \mathbf etc... or null */
+	protected String letters() {
+		skipSpaces();
+		int end = eqn.indexOf('}', p);
+		if ( p>=eqn.length() || eqn.charAt(p)!='{' || end<0 ) {
+			return null;
+		}
+		String arg = eqn.substring(p+1, end);
+		if ( arg.isEmpty() || !arg.chars().allMatch(ch -> ch<128 && Character.isLetterOrDigit(ch)) ) {
+			return null;
+		}
+		p = end+1;
+		return arg;
+	}
+
+	/** Name of \command at p, which is a run of letters or a single other char */
+	protected String peekCommand() {
+		int start = p+1;
+		if ( start>=eqn.length() ) {
+			return "";
+		}
+		int end = start;
+		while ( end<eqn.length() && Character.isLetter(eqn.charAt(end)) ) end++;
+		if ( end==start ) end++; // \, \{ etc...
+		return eqn.substring(start, end);
+	}
+
+	protected void skipSpaces() {
+		while ( p<eqn.length() && Character.isWhitespace(eqn.charAt(p)) ) p++;
+	}
+}
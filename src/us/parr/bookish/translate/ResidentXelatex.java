@@ -0,0 +1,135 @@
+package us.parr.bookish.translate;
+
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.Triple;
+import org.stringtemplate.v4.ST;
+import us.parr.lib.ParrtIO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static us.parr.lib.ParrtSys.execInDir;
+
+/** Keep a warm xelatex process around that has already loaded the format,
+ *  fonts, and eqntex.stg preamble and is blocked reading an equation from
+ *  its stdin (template texserver). Typesetting an equation is then just
+ *  writing it down the pipe and waiting for the page.
+ *
+ *  xelatex can't hand us a finished pdf page until \end{document}, so each
+ *  warm process typesets one equation and exits; as soon as it does, we
+ *  launch its replacement so the next one loads its preamble while we
+ *  crop and convert. Two jobnames alternate so the spare can't clobber
+ *  the pdf we're still converting. The spare outlives the build under
+ *  Tool -watch since the pool's workers do, so a rebuild's first equation
+ *  doesn't wait on a preamble load either.
+ *
+ *  Not thread safe; each Tex2SVG worker owns one.
+ */
+public class ResidentXelatex {
+	public static final String SENTINEL = "\\bookishdone";
+	public static final int TIMEOUT_SEC = 60;
+
+	public final String workDir;
+
+	/** Pages sized to the equation's box; no pdfcrop. See XelatexBackend.tight */
+	public boolean tight = false;
+
+	protected Process spare;
+	protected int spareFontsize;
+	protected int spareJob; // 0 or 1; spare writes warm-<spareJob>.*
+
+	public ResidentXelatex(String workDir) {
+		this.workDir = workDir;
+	}
+
+	/** Typeset body (already wrapped in $...$, \[...\] or whatever) and
+	 *  return (svg,height,depth) like Tex2SVG.tex2svg().
+	 */
+	public Triple<String,Float,Float> tex2svg(String body, int fontsize) throws IOException, InterruptedException {
+		if ( spare==null || spareFontsize!=fontsize || !spare.isAlive() ) {
+			close();
+			startSpare(fontsize);
+		}
+		Process p = spare;
+		String jobname = "warm-"+spareJob;
+		spare = null;
+
+		try (OutputStream stdin = p.getOutputStream()) {
+			stdin.write((body+"\n"+SENTINEL+"\n").getBytes());
+		}
+		if ( !p.waitFor(TIMEOUT_SEC, TimeUnit.SECONDS) ) {
+			p.destroyForcibly();
+			System.err.println("xelatex hung on: "+body);
+			return null;
+		}
+
+		startSpare(fontsize); // warm up the next one while we finish this one
+
+		String log = ParrtIO.load(workDir+"/"+jobname+".log");
+		for (String line : log.split("\n")) {
+			if ( line.startsWith("!") || line.startsWith("l.") ) {
+				System.err.println(line);
+				System.err.println(body);
+			}
+		}
+		if ( !Files.exists(Paths.get(workDir, jobname+".pdf")) ) {
+			System.err.println("no output from latex for: "+body);
+			return new Triple<>(null,0f,0f);
+		}
+		List<Pair<Float,Float>> metrics = Tex2SVG.getMetrics(log);
+		float height = 0, depth = 0;
+		if ( metrics.size()>0 ) {
+			height = metrics.get(0).a;
+			depth = metrics.get(0).b;
+		}
+
+		String pdf = jobname+".pdf";
+		if ( !tight ) {
+			String[] results = execInDir(workDir, "pdfcrop", pdf);
+			if ( results[1].length()>0 ) {
+				System.err.println(results[1]);
+			}
+			pdf = jobname+"-crop.pdf";
+		}
+		String[] results = execInDir(workDir, "pdf2svg", pdf, jobname+".svg");
+		if ( results[1].length()>0 ) {
+			System.err.println(results[1]);
+		}
+		String svg = new String(Files.readAllBytes(Paths.get(workDir, jobname+".svg")));
+		return new Triple<>(svg, height, depth);
+	}
+
+	/** Kill the spare, if any */
+	public void close() {
+		if ( spare!=null ) {
+			spare.destroy();
+			spare = null;
+		}
+	}
+
+	protected void startSpare(int fontsize) throws IOException {
+		spareJob = 1 - spareJob;
+		String jobname = "warm-"+spareJob;
+		for (String suffix : new String[] {".log", ".pdf", "-crop.pdf", ".svg"}) {
+			Files.deleteIfExists(Paths.get(workDir, jobname+suffix));
+		}
+		ST template = Tex2SVG.newTemplate("texserver");
+		template.add("fontsize", fontsize);
+		template.add("tight", tight);
+		Files.write(Paths.get(workDir, jobname+".tex"), template.render().getBytes());
+
+		// scrollmode not nonstopmode; the latter refuses to \read from the terminal
+		ProcessBuilder pb =
+			new ProcessBuilder("xelatex", "-shell-escape", "-interaction=scrollmode", jobname+".tex")
+				.directory(new File(workDir))
+				.redirectErrorStream(true)
+				.redirectOutput(new File(workDir, jobname+".out"));
+		spare = pb.start();
+		spareFontsize = fontsize;
+	}
+}
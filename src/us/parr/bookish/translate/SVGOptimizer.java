@@ -0,0 +1,284 @@
+package us.parr.bookish.translate;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Shrink the svg pdf2svg (or dvisvgm) gives us before it goes in images/.
+ *  Two streaming (StAX) passes: the first collects every id something
+ *  refers to (href="#id", url(#id)); the second writes the document back
+ *  out without the XML prolog, whitespace between tags, unreferenced ids,
+ *  or unreferenced elements under defs (glyphs and clip paths nobody uses).
+ *  Coordinates (but not transform scale/skew) are rounded to a few
+ *  decimals and identity-ish matrix(1,0,0,1,x,y) transforms become
+ *  translate(x,y). The root svg element is left alone so width, height,
+ *  and viewBox stay exact.
+ *
+ *  Keeps running totals of bytes in and out for the end of build report.
+ *  Thread safe.
+ */
+public class SVGOptimizer {
+	public static final Set<String> geometryAttrs =
+		new HashSet<>(Arrays.asList("d", "x", "y", "x1", "y1", "x2", "y2", "cx", "cy", "r", "rx", "ry",
+		                            "width", "height", "points"));
+
+	public static final Pattern refPattern = Pattern.compile("url\\(#([^)]+)\\)");
+	public static final Pattern numberPattern = Pattern.compile("-?[0-9]*\\.[0-9]+");
+	public static final Pattern transformPattern = Pattern.compile("([a-zA-Z]+)\\s*\\(([^)]*)\\)");
+	public static final Pattern translateMatrixPattern =
+		Pattern.compile("matrix\\(\\s*1\\s*,\\s*0\\s*,\\s*0\\s*,\\s*1\\s*,\\s*([-0-9.]+)\\s*,\\s*([-0-9.]+)\\s*\\)");
+
+	protected static final XMLInputFactory factory = XMLInputFactory.newInstance();
+	static {
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false); // pdf2svg has none; don't go fetch one
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+	/** Digits to keep after the decimal point; coordinates are in pt */
+	public int precision = 2;
+
+	public final AtomicLong files = new AtomicLong();
+	public final AtomicLong bytesIn = new AtomicLong();
+	public final AtomicLong bytesOut = new AtomicLong();
+
+	/** Return smaller svg or, if we can't parse it, the original */
+	public String optimize(String svg) {
+		String result = svg;
+		try {
+			result = write(svg, getReferencedIDs(svg));
+		}
+		catch (XMLStreamException xse) {
+			System.err.println("can't optimize svg: "+xse.getMessage());
+		}
+		files.incrementAndGet();
+		bytesIn.addAndGet(svg.length());
+		bytesOut.addAndGet(result.length());
+		return result;
+	}
+
+	public String getReport() {
+		long in = bytesIn.get();
+		long out = bytesOut.get();
+		return String.format("optimized %d equation svg files: %,d -> %,d bytes (%.0f%% smaller)",
+		                     files.get(), in, out, in>0 ? 100.0*(in-out)/in : 0.0);
+	}
+
+	protected Set<String> getReferencedIDs(String svg) throws XMLStreamException {
+		Set<String> refs = new HashSet<>();
+		XMLStreamReader r = factory.createXMLStreamReader(new StringReader(svg));
+		try {
+			while ( r.hasNext() ) {
+				if ( r.next()==XMLStreamConstants.START_ELEMENT ) {
+					for (int i = 0; i<r.getAttributeCount(); i++) {
+						String v = r.getAttributeValue(i);
+						if ( r.getAttributeLocalName(i).equals("href") && v.startsWith("#") ) {
+							refs.add(v.substring(1));
+						}
+						Matcher m = refPattern.matcher(v);
+						while ( m.find() ) {
+							refs.add(m.group(1));
+						}
+					}
+				}
+			}
+		}
+		finally {
+			r.close();
+		}
+		return refs;
+	}
+
+	protected String write(String svg, Set<String> refs) throws XMLStreamException {
+		StringBuilder buf = new StringBuilder(svg.length());
+		XMLStreamReader r = factory.createXMLStreamReader(new StringReader(svg));
+		int depth = 0;       // of element we're in
+		int defsDepth = -1;  // depth of enclosing <defs> or -1
+		int skipDepth = -1;  // depth of element we're dropping or -1
+		boolean startTagOpen = false; // wrote "<tag attrs" but not ">" yet
+		try {
+			while ( r.hasNext() ) {
+				int t = r.next();
+				if ( skipDepth>=0 ) { // dropping an unused def; just track depth
+					if ( t==XMLStreamConstants.START_ELEMENT ) depth++;
+					else if ( t==XMLStreamConstants.END_ELEMENT ) {
+						if ( depth==skipDepth ) skipDepth = -1;
+						depth--;
+					}
+					continue;
+				}
+				switch ( t ) {
+					case XMLStreamConstants.START_ELEMENT :
+						depth++;
+						String id = r.getAttributeValue(null, "id");
+						if ( defsDepth>=0 && id!=null && !refs.contains(id) ) {
+							skipDepth = depth;
+							break;
+						}
+						if ( startTagOpen ) buf.append('>');
+						if ( r.getLocalName().equals("defs") ) defsDepth = depth;
+						writeStartTag(buf, r, refs, depth==1);
+						startTagOpen = true;
+						break;
+					case XMLStreamConstants.END_ELEMENT :
+						if ( startTagOpen ) {
+							buf.append("/>");
+							startTagOpen = false;
+						}
+						else {
+							buf.append("</").append(getQName(r.getPrefix(), r.getLocalName())).append('>');
+						}
+						if ( depth==defsDepth ) defsDepth = -1;
+						depth--;
+						break;
+					case XMLStreamConstants.CHARACTERS :
+					case XMLStreamConstants.CDATA :
+						if ( r.isWhiteSpace() || r.getText().trim().isEmpty() ) {
+							break; // indentation between tags; pdf2svg text is all paths
+						}
+						if ( startTagOpen ) {
+							buf.append('>');
+							startTagOpen = false;
+						}
+						escape(buf, r.getText(), false);
+						break;
+					default : // drop prolog, comments, processing instructions
+						break;
+				}
+			}
+		}
+		finally {
+			r.close();
+		}
+		return buf.toString();
+	}
+
+	protected void writeStartTag(StringBuilder buf, XMLStreamReader r, Set<String> refs, boolean root) {
+		buf.append('<').append(getQName(r.getPrefix(), r.getLocalName()));
+		for (int i = 0; i<r.getNamespaceCount(); i++) {
+			String prefix = r.getNamespacePrefix(i);
+			buf.append(' ').append(prefix==null || prefix.isEmpty() ? "xmlns" : "xmlns:"+prefix).append("=\"");
+			escape(buf, r.getNamespaceURI(i), true);
+			buf.append('"');
+		}
+		for (int i = 0; i<r.getAttributeCount(); i++) {
+			String name = r.getAttributeLocalName(i);
+			String value = r.getAttributeValue(i);
+			if ( !root ) {
+				if ( name.equals("id") && !refs.contains(value) ) {
+					continue;
+				}
+				if ( geometryAttrs.contains(name) ) {
+					value = roundNumbers(value);
+				}
+				if ( name.equals("transform") ) {
+					value = simplifyTransform(roundTransform(value));
+					if ( value.isEmpty() ) {
+						continue;
+					}
+				}
+			}
+			buf.append(' ').append(getQName(r.getAttributePrefix(i), name)).append("=\"");
+			escape(buf, value, true);
+			buf.append('"');
+		}
+	}
+
+	/** Round every decimal number in s to precision digits, dropping trailing zeros */
+	public String roundNumbers(String s) {
+		Matcher m = numberPattern.matcher(s);
+		StringBuffer out = new StringBuffer(s.length());
+		while ( m.find() ) {
+			m.appendReplacement(out, formatNumber(Double.parseDouble(m.group())));
+		}
+		m.appendTail(out);
+		return out.toString();
+	}
+
+	/** Round the translation parts of a transform, the e,f of matrix(a,b,c,d,e,f)
+	 *  and translate()'s x,y; scale and skew are left exact since rounding
+	 *  1.00375 to 1 moves everything far from the origin.
+	 */
+	public String roundTransform(String transform) {
+		Matcher m = transformPattern.matcher(transform);
+		StringBuffer out = new StringBuffer(transform.length());
+		while ( m.find() ) {
+			String f = m.group(1);
+			String[] args = m.group(2).trim().split("[\\s,]+");
+			int firstToRound = f.equals("translate") ? 0 : f.equals("matrix") && args.length==6 ? 4 : args.length;
+			try {
+				for (int i = firstToRound; i<args.length; i++) {
+					args[i] = formatNumber(Double.parseDouble(args[i]));
+				}
+			}
+			catch (NumberFormatException nfe) {
+				continue; // leave as is
+			}
+			m.appendReplacement(out, Matcher.quoteReplacement(f+"("+String.join(",", args)+")"));
+		}
+		m.appendTail(out);
+		return out.toString();
+	}
+
+	public String formatNumber(double v) {
+		String s = String.format(Locale.ROOT, "%."+precision+"f", v); // not 1,50 in de_DE
+		if ( s.indexOf('.')>=0 ) {
+			int end = s.length();
+			while ( s.charAt(end-1)=='0' ) end--;
+			if ( s.charAt(end-1)=='.' ) end--;
+			s = s.substring(0, end);
+		}
+		if ( s.equals("-0") ) {
+			s = "0";
+		}
+		return s;
+	}
+
+	/** matrix(1,0,0,1,x,y) is just translate(x,y); drop it altogether if x=y=0 */
+	public static String simplifyTransform(String transform) {
+		Matcher m = translateMatrixPattern.matcher(transform);
+		StringBuffer out = new StringBuffer();
+		while ( m.find() ) {
+			String x = m.group(1);
+			String y = m.group(2);
+			String replacement;
+			if ( Double.parseDouble(y)==0 ) {
+				replacement = Double.parseDouble(x)==0 ? "" : "translate("+x+")";
+			}
+			else {
+				replacement = "translate("+x+","+y+")";
+			}
+			m.appendReplacement(out, replacement);
+		}
+		m.appendTail(out);
+		return out.toString().trim();
+	}
+
+	protected static String getQName(String prefix, String localName) {
+		return prefix==null || prefix.isEmpty() ? localName : prefix+":"+localName;
+	}
+
+	protected static void escape(StringBuilder buf, String s, boolean attr) {
+		for (int i = 0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			switch ( c ) {
+				case '&' : buf.append("&amp;"); break;
+				case '<' : buf.append("&lt;"); break;
+				case '>' : buf.append("&gt;"); break;
+				case '"' :
+					if ( attr ) buf.append("&quot;");
+					else buf.append(c);
+					break;
+				default : buf.append(c);
+			}
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package us.parr.bookish.translate;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static us.parr.lib.ParrtStrings.md5hash;
+
+/** Pack all of a chapter's equations into one svg (-embed-eqns sprite).
+ *  Each equation becomes a <symbol> the html pulls in with
+ *  <svg><use href="images/chapter-eqns.svg#id"/></svg>. The glyph symbols
+ *  pdf2svg defines in every file are shared: identical glyphs (same
+ *  attributes and path) are stored once and every equation's <use> of one
+ *  is pointed at the shared copy. Anything else under defs (clip paths)
+ *  gets the equation's id as a prefix so it can't collide.
+ *
+ *  One per chapter; not thread safe.
+ */
+public class SVGSprite {
+	public static final Pattern defPattern = Pattern.compile("^<(\\S+) id=\"([^\"]*)\"");
+	public static final Pattern refPattern = Pattern.compile("(href=\"#|url\\(#)([^\")]+)");
+
+	/** What the templates need to point at one equation in the sprite */
+	public static class Symbol {
+		public String id;
+		public String href;    // relative to the html file
+		public String width, height, viewBox;
+	}
+
+	public final String filename; // relative to outputDir, e.g., images/intro-eqns.svg
+
+	protected final Map<String,Symbol> symbols = new LinkedHashMap<>();
+
+	/** Glyph element text (sans id) to shared glyph id */
+	protected final Map<String,String> glyphs = new LinkedHashMap<>();
+
+	protected final StringBuilder otherDefs = new StringBuilder();
+	protected final StringBuilder body = new StringBuilder();
+
+	public SVGSprite(String filename) {
+		this.filename = filename;
+	}
+
+	/** Add svg from file (relative to outputDir) unless we have it; return
+	 *  its symbol or null if we can't parse it.
+	 */
+	public Symbol add(String file, String svg) {
+		Symbol sym = symbols.get(file);
+		if ( sym!=null ) {
+			return sym;
+		}
+		sym = new Symbol();
+		sym.id = "e"+md5hash(file).substring(0, 12);
+		sym.href = filename+"#"+sym.id;
+		try {
+			body.append(getSymbol(sym, svg));
+		}
+		catch (XMLStreamException xse) {
+			System.err.println("can't add "+file+" to "+filename+": "+xse.getMessage());
+			return null;
+		}
+		symbols.put(file, sym);
+		return sym;
+	}
+
+	public boolean isEmpty() { return symbols.isEmpty(); }
+
+	public String render() {
+		StringBuilder buf = new StringBuilder();
+		buf.append("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">");
+		buf.append("<defs>");
+		glyphs.forEach((glyph, id) -> buf.append("<symbol id=\"").append(id).append('"').append(glyph.substring("<symbol".length())));
+		buf.append(otherDefs);
+		buf.append("</defs>");
+		buf.append(body);
+		buf.append("</svg>\n");
+		return buf.toString();
+	}
+
+	/** Return equation svg as a <symbol> (filling in sym's size), moving its
+	 *  defs into the sprite's.
+	 */
+	protected String getSymbol(Symbol sym, String svg) throws XMLStreamException {
+		String prefix = sym.id+"-";
+		Map<String,String> idMap = new HashMap<>(); // glyph ids in this file to shared ids
+		StringBuilder symbol = new StringBuilder();
+		StringBuilder def = null; // def element we're collecting, if any
+		int depth = 0;
+		int defsDepth = -1;
+		int defDepth = -1;
+		boolean startTagOpen = false;
+		XMLStreamReader r = SVGOptimizer.factory.createXMLStreamReader(new StringReader(svg));
+		try {
+			while ( r.hasNext() ) {
+				int t = r.next();
+				StringBuilder out = def!=null ? def : symbol;
+				switch ( t ) {
+					case XMLStreamConstants.START_ELEMENT :
+						depth++;
+						if ( startTagOpen ) out.append('>');
+						startTagOpen = false;
+						if ( depth==1 ) { // root <svg>
+							sym.width = r.getAttributeValue(null, "width");
+							sym.height = r.getAttributeValue(null, "height");
+							sym.viewBox = r.getAttributeValue(null, "viewBox");
+							symbol.append("<symbol id=\"").append(sym.id).append('"');
+							if ( sym.viewBox!=null ) {
+								symbol.append(" viewBox=\"").append(sym.viewBox).append('"');
+							}
+							symbol.append('>');
+							break;
+						}
+						if ( r.getLocalName().equals("defs") ) {
+							defsDepth = depth;
+							break;
+						}
+						if ( defsDepth>=0 && def==null && r.getAttributeValue(null, "id")!=null ) {
+							def = new StringBuilder();
+							defDepth = depth;
+							out = def;
+						}
+						if ( defsDepth>=0 && def==null ) {
+							break; // wrapper like <g> around glyphs; defs are flattened
+						}
+						writeStartTag(out, r, def!=null && depth==defDepth, prefix);
+						startTagOpen = true;
+						break;
+					case XMLStreamConstants.END_ELEMENT :
+						if ( depth==1 ) {
+							symbol.append("</symbol>");
+						}
+						else if ( depth==defsDepth ) {
+							defsDepth = -1;
+						}
+						else if ( defsDepth<0 || def!=null ) {
+							if ( startTagOpen ) out.append("/>");
+							else out.append("</").append(SVGOptimizer.getQName(r.getPrefix(), r.getLocalName())).append('>');
+							startTagOpen = false;
+							if ( depth==defDepth ) {
+								addDef(def.toString(), prefix, idMap);
+								def = null;
+								defDepth = -1;
+							}
+						}
+						depth--;
+						break;
+					case XMLStreamConstants.CHARACTERS :
+						if ( !r.isWhiteSpace() && !r.getText().trim().isEmpty() && (defsDepth<0 || def!=null) ) {
+							if ( startTagOpen ) out.append('>');
+							startTagOpen = false;
+							SVGOptimizer.escape(out, r.getText(), false);
+						}
+						break;
+				}
+			}
+		}
+		finally {
+			r.close();
+		}
+		return rewriteRefs(symbol.toString(), prefix, idMap);
+	}
+
+	/** def is a whole element from defs with its id attribute written first.
+	 *  Glyph symbols are shared by content; anything else is kept under a
+	 *  prefixed id.
+	 */
+	protected void addDef(String def, String prefix, Map<String,String> idMap) {
+		Matcher m = defPattern.matcher(def);
+		if ( !m.find() ) {
+			return;
+		}
+		String id = m.group(2);
+		if ( m.group(1).equals("symbol") ) {
+			String glyph = def.substring(0, m.start(2)-" id=\"".length())+def.substring(m.end(2)+1);
+			String shared = glyphs.get(glyph);
+			if ( shared==null ) {
+				shared = "g"+glyphs.size();
+				glyphs.put(glyph, shared);
+			}
+			idMap.put(id, shared);
+		}
+		else {
+			idMap.put(id, prefix+id);
+			def = def.substring(0, m.start(2))+prefix+def.substring(m.start(2));
+			otherDefs.append(rewriteRefs(def, prefix, idMap));
+		}
+	}
+
+	/** Point #id and url(#id) references at shared glyphs or prefixed defs */
+	protected String rewriteRefs(String s, String prefix, Map<String,String> idMap) {
+		Matcher m = refPattern.matcher(s);
+		StringBuffer out = new StringBuffer();
+		while ( m.find() ) {
+			String id = idMap.getOrDefault(m.group(2), prefix+m.group(2));
+			m.appendReplacement(out, Matcher.quoteReplacement(m.group(1)+id));
+		}
+		m.appendTail(out);
+		return out.toString();
+	}
+
+	/** Write start tag; id goes first on a def so addDef() can find it.
+	 *  Other ids get the equation's prefix.
+	 */
+	protected void writeStartTag(StringBuilder buf, XMLStreamReader r, boolean isDef, String prefix) {
+		buf.append('<').append(SVGOptimizer.getQName(r.getPrefix(), r.getLocalName()));
+		String id = r.getAttributeValue(null, "id");
+		if ( id!=null ) {
+			buf.append(" id=\"").append(isDef ? id : prefix+id).append('"');
+		}
+		for (int i = 0; i<r.getAttributeCount(); i++) {
+			String name = r.getAttributeLocalName(i);
+			if ( name.equals("id") ) {
+				continue;
+			}
+			buf.append(' ').append(SVGOptimizer.getQName(r.getAttributePrefix(i), name)).append("=\"");
+			SVGOptimizer.escape(buf, r.getAttributeValue(i), true);
+			buf.append('"');
+		}
+	}
+}
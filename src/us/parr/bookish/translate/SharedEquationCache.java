@@ -0,0 +1,167 @@
+package us.parr.bookish.translate;
+
+import org.antlr.v4.runtime.misc.Triple;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static us.parr.lib.ParrtStrings.md5hash;
+
+/** Equation cache shared by every book and build on the machine
+ *  (-eqn-cache dir), so identical equations are typeset once no matter
+ *  how many books or branches use them.
+ *
+ *  Renderings are keyed by backend, tight or not, type, font size,
+ *  preamble hash, and equation text. Each is an svg file plus a .metrics
+ *  file with height and depth, both under a two character fan-out dir.
+ *  Files appear by atomic rename, svg first, so a reader that finds the
+ *  .metrics file finds a complete svg. A writer holds a lock on a .lock
+ *  file while it renders. Anybody else asking for the same equation
+ *  blocks on that lock and then finds the result rather than rendering
+ *  it again.
+ *
+ *  Optimized svg files headed for a book's images/ live under objects/,
+ *  named by content hash, and are hard linked into the book (copied if
+ *  the book is on another file system); see link().
+ *
+ *  Thread and process safe.
+ */
+public class SharedEquationCache {
+	public final Path dir;
+
+	public final AtomicInteger hits = new AtomicInteger();
+	public final AtomicInteger misses = new AtomicInteger();
+	public final AtomicInteger links = new AtomicInteger();
+
+	public SharedEquationCache(String dir) {
+		this.dir = Paths.get(dir).toAbsolutePath();
+	}
+
+	public String getKey(String backend, boolean tight, String latex, Tex2SVG.LatexType type, int fontsize) {
+		return md5hash(backend+":"+tight+":"+type+":"+fontsize+":"+Tex2SVG.getPreambleHash(fontsize, tight)+":"+latex.trim());
+	}
+
+	/** Return (svg,height,depth) for key or null if nobody has typeset it */
+	public Triple<String,Float,Float> get(String key) {
+		Path metrics = getPath(key, ".metrics");
+		if ( !Files.exists(metrics) ) {
+			return null;
+		}
+		try {
+			String[] hd = new String(Files.readAllBytes(metrics), StandardCharsets.UTF_8).trim().split(" ");
+			String svg = new String(Files.readAllBytes(getPath(key, ".svg")), StandardCharsets.UTF_8);
+			hits.incrementAndGet();
+			return new Triple<>(svg, Float.parseFloat(hd[0]), Float.parseFloat(hd[1]));
+		}
+		catch (IOException|RuntimeException e) {
+			System.err.println("ignoring bad shared cache entry "+metrics+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	/** Record a successful rendering; failures aren't shared so a broken
+	 *  latex install in one build can't poison everybody else.
+	 */
+	public void put(String key, Triple<String,Float,Float> svg) {
+		if ( svg==null || svg.a==null ) {
+			return;
+		}
+		try {
+			EquationStore.writeAtomically(getPath(key, ".svg"), svg.a);
+			EquationStore.writeAtomically(getPath(key, ".metrics"), svg.b+" "+svg.c+"\n");
+		}
+		catch (IOException ioe) {
+			System.err.println("can't write shared cache entry "+key+": "+ioe.getMessage());
+		}
+	}
+
+	/** Lock key across processes, blocking until we get it, or null if we
+	 *  can't lock (no lock support, say); caller renders anyway.
+	 */
+	public FileLock lock(String key) {
+		return lock(key, true);
+	}
+
+	/** Lock key if nobody else has it; null if they do (or on error) */
+	public FileLock tryLock(String key) {
+		return lock(key, false);
+	}
+
+	protected FileLock lock(String key, boolean block) {
+		Path lockFile = getPath(key, ".lock");
+		FileChannel channel = null;
+		try {
+			Files.createDirectories(lockFile.getParent());
+			channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock lock = block ? channel.lock() : channel.tryLock();
+			if ( lock==null ) {
+				channel.close();
+			}
+			return lock;
+		}
+		catch (IOException|OverlappingFileLockException e) {
+			if ( channel!=null ) {
+				try { channel.close(); } catch (IOException ignored) { }
+			}
+			return null;
+		}
+	}
+
+	/** Release and toss the lock file. Somebody might be waiting on the
+	 *  old file while a third party makes a new one; worst case two of
+	 *  them render the same equation, which the atomic renames make harmless.
+	 */
+	public void unlock(String key, FileLock lock) {
+		if ( lock==null ) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(getPath(key, ".lock"));
+			lock.release();
+			lock.channel().close();
+		}
+		catch (IOException ioe) {
+			System.err.println("can't unlock shared cache entry "+key+": "+ioe.getMessage());
+		}
+	}
+
+	/** Put svg text at target as a hard link to the shared copy of that
+	 *  text, adding it to objects/ if needed. Falls back on writing a copy.
+	 */
+	public void link(String text, Path target) throws IOException {
+		String hash = md5hash(text);
+		Path object = dir.resolve("objects").resolve(hash.substring(0, 2)).resolve(hash+".svg");
+		try {
+			if ( !Files.exists(object) ) {
+				EquationStore.writeAtomically(object, text);
+			}
+			// link under a temp name then rename over target so it's atomic too
+			Path tmp = target.toAbsolutePath().getParent().resolve(".tmp-link-"+target.getFileName());
+			Files.deleteIfExists(tmp);
+			Files.createLink(tmp, object);
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			links.incrementAndGet();
+		}
+		catch (IOException|UnsupportedOperationException e) { // other file system, say
+			EquationStore.writeAtomically(target, text);
+		}
+	}
+
+	public String getReport() {
+		return String.format("shared equation cache %s: %d hits, %d misses, %d files linked",
+		                     dir, hits.get(), misses.get(), links.get());
+	}
+
+	protected Path getPath(String key, String suffix) {
+		return dir.resolve(key.substring(0, 2)).resolve(key+suffix);
+	}
+}
@@ -1,103 +1,273 @@
 package us.parr.bookish.translate;
 
+import org.antlr.v4.runtime.misc.Pair;
 import org.antlr.v4.runtime.misc.Triple;
 import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.STGroupFile;
-import us.parr.lib.ParrtIO;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
-import static us.parr.lib.ParrtSys.execInDir;
+import static us.parr.lib.ParrtStrings.md5hash;
 
 public class Tex2SVG {
 	public static STGroupFile templates = new STGroupFile("templates/eqntex.stg");
 
-	enum LatexType {EQN, BLOCKEQN, LATEX}
+	public static final String METRICS_PREFIX = "// bookish metrics: ";
+
+	protected static final Map<String,String> preambleHashes = new ConcurrentHashMap<>();
+
+	public enum LatexType {EQN, BLOCKEQN, LATEX}
+
+	/** Backends by name for -eqn-backend; first is the default */
+	public static final Map<String,Supplier<TexBackend>> backends =
+		new LinkedHashMap<String,Supplier<TexBackend>>() {{
+			put("xelatex", XelatexBackend::new);
+			put("dvisvgm", DVISVGMBackend::new);
+			put("java", JavaMathBackend::new);
+		}};
 
 	public String outputDir;
 
+	/** Where temp.tex, temp.pdf, ... go. Must not be shared with another
+	 *  Tex2SVG that could run at the same time.
+	 */
+	public String workDir;
+
+	public TexBackend backend;
+
+	/** Checked before and filled after typesetting; null means none (-eqn-cache) */
+	public SharedEquationCache cache;
+
 	public Tex2SVG(String outputDir) {
+		this(outputDir, outputDir, new XelatexBackend());
+	}
+
+	public Tex2SVG(String outputDir, String workDir, TexBackend backend) {
 		this.outputDir = outputDir;
+		this.workDir = workDir;
+		this.backend = backend;
 	}
 
+	/** Return (svg,height,depth) for latex. If latex ran but produced no
+	 *  pages (a broken equation), svg is null. Return null if we couldn't
+	 *  run the tools at all.
+	 */
 	public Triple<String,Float,Float> tex2svg(String latex, LatexType type, int fontsize) {
+		if ( cache==null ) {
+			return render(latex, type, fontsize);
+		}
+		String key = cache.getKey(backend.getName(), backend.isTight(), latex, type, fontsize);
+		Triple<String,Float,Float> result = cache.get(key);
+		if ( result!=null ) {
+			return result;
+		}
+		FileLock lock = cache.lock(key);
+		try {
+			result = cache.get(key); // somebody might have done it while we waited
+			if ( result==null ) {
+				cache.misses.incrementAndGet();
+				result = render(latex, type, fontsize);
+				cache.put(key, result);
+			}
+			return result;
+		}
+		finally {
+			cache.unlock(key, lock);
+		}
+	}
+
+	protected Triple<String,Float,Float> render(String latex, LatexType type, int fontsize) {
 		try {
 			latex = latex.trim();
-			String tmpdir = new File(outputDir).getAbsolutePath();
+			String tmpdir = prepareWorkDir();
+			return backend.tex2svg(tmpdir, latex, type, fontsize);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
 
-			if ( !Files.exists(Paths.get(tmpdir)) ) {
-				Files.createDirectories(Paths.get(tmpdir));
+	/** Typeset a list of equations in one go if the backend can. Returns
+	 *  (svg,height,depth) for each equation in order or null; caller should
+	 *  fall back on tex2svg() one equation at a time.
+	 */
+	public List<Triple<String,Float,Float>> tex2svgBatch(List<Pair<String,LatexType>> equations, int fontsize) {
+		if ( cache==null ) {
+			return renderBatch(equations, fontsize);
+		}
+		List<Triple<String,Float,Float>> results = new ArrayList<>();
+		List<Integer> todo = new ArrayList<>();    // we hold the lock; render in one batch
+		List<Integer> waiting = new ArrayList<>(); // somebody else is rendering it
+		List<String> keys = new ArrayList<>();
+		List<FileLock> locks = new ArrayList<>();
+		for (int i = 0; i<equations.size(); i++) {
+			Pair<String,LatexType> eqn = equations.get(i);
+			String key = cache.getKey(backend.getName(), backend.isTight(), eqn.a, eqn.b, fontsize);
+			keys.add(key);
+			Triple<String,Float,Float> result = cache.get(key);
+			results.add(result);
+			if ( result!=null ) {
+				continue;
 			}
-			if ( !Files.exists(Paths.get(tmpdir+"/images")) ) {
-				Files.createSymbolicLink(Paths.get(tmpdir+"/images"), Paths.get(outputDir+"/images"));
+			FileLock lock = cache.tryLock(key);
+			if ( lock==null ) {
+				waiting.add(i);
 			}
-
-			String texfilename = tmpdir+"/temp.tex";
-			ST template = null;
-			switch ( type ) {
-				case EQN:
-					template = templates.getInstanceOf("eqntex");
-					break;
-				case BLOCKEQN:
-					template = templates.getInstanceOf("blockeqntex");
-					break;
-				case LATEX:
-					template = templates.getInstanceOf("blocktex");
-					break;
+			else {
+				todo.add(i);
+				locks.add(lock);
 			}
-			template.add("text", latex);
-			template.add("fontsize", fontsize);
-			Files.write(Paths.get(texfilename), template.render().getBytes());
-
-//			System.out.println("wrote "+texfilename);
-
-			String[] results = execInDir(tmpdir, "xelatex", "-shell-escape", "-interaction=nonstopmode", "temp.tex");
-//    println(results.a)
-
-			String metricsRegex = "// bookish metrics: ([0-9]*[.][0-9]+)pt, ([0-9]*[.][0-9]+)pt";
-			Pattern metricsPattern =  Pattern.compile("metricsRegex");
-			String log = ParrtIO.load(tmpdir+"/temp.log");
-
-			float height=0, depth=0;
-
-			for (String line : results[0].split("\n")) {
-				String prefix = "// bookish metrics: ";
-				if ( line.startsWith(prefix) ) {
-					int first = prefix.length();
-					int comma = line.indexOf(',');
-					String heightS = line.substring(first,comma-"pt".length());
-					String depthS = line.substring(comma+1,line.indexOf('p',comma));
-					height = Float.parseFloat(heightS);
-					depth = Float.parseFloat(depthS);
+		}
+		try {
+			if ( todo.size()>0 ) {
+				List<Pair<String,LatexType>> batch = new ArrayList<>();
+				for (int i : todo) {
+					batch.add(equations.get(i));
 				}
-				if ( line.startsWith("!") || line.startsWith("l.") ) {
-					System.err.println(line);
-					System.err.println(latex);
+				cache.misses.addAndGet(todo.size());
+				List<Triple<String,Float,Float>> batchResults = renderBatch(batch, fontsize);
+				if ( batchResults==null ) {
+					return null; // caller goes one by one, through the cache
+				}
+				for (int j = 0; j<todo.size(); j++) {
+					cache.put(keys.get(todo.get(j)), batchResults.get(j));
+					results.set(todo.get(j), batchResults.get(j));
 				}
 			}
-			if ( results[1].length()>0 ) {
-				System.err.println(results[1]);
+		}
+		finally {
+			for (int j = 0; j<todo.size(); j++) {
+				cache.unlock(keys.get(todo.get(j)), locks.get(j));
 			}
+		}
+		for (int i : waiting) { // blocks until the other build is done then finds it
+			results.set(i, tex2svg(equations.get(i).a, equations.get(i).b, fontsize));
+		}
+		return results;
+	}
 
-			results = execInDir(tmpdir, "pdfcrop", "temp.pdf");
-			if ( results[1].length()>0 ) {
-				System.err.println(results[1]);
+	protected List<Triple<String,Float,Float>> renderBatch(List<Pair<String,LatexType>> equations, int fontsize) {
+		try {
+			String tmpdir = prepareWorkDir();
+			return backend.tex2svgBatch(tmpdir, equations, fontsize);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/** Release backend processes */
+	public void close() {
+		backend.close();
+	}
+
+	/** Make sure work dir exists and that latex can see images/ from it;
+	 *  return absolute path of work dir.
+	 */
+	protected String prepareWorkDir() throws IOException {
+		String tmpdir = new File(workDir).getAbsolutePath();
+		if ( !Files.exists(Paths.get(tmpdir)) ) {
+			Files.createDirectories(Paths.get(tmpdir));
+		}
+		if ( !Files.exists(Paths.get(tmpdir+"/images")) ) {
+			Files.createSymbolicLink(Paths.get(tmpdir+"/images"), Paths.get(outputDir+"/images").toAbsolutePath());
+		}
+		return tmpdir;
+	}
+
+	public static TexBackend newBackend(String name) {
+		Supplier<TexBackend> ctor = backends.get(name);
+		if ( ctor==null ) {
+			throw new IllegalArgumentException("unknown equation backend "+name+"; try one of "+backends.keySet());
+		}
+		return ctor.get();
+	}
+
+	/** STGroup loads lazily and isn't safe to load from multiple worker threads */
+	public static ST newTemplate(String name) {
+		synchronized ( templates ) {
+			return templates.getInstanceOf(name);
+		}
+	}
+
+	/** Hash of the latex preamble (which includes font size); cached images
+	 *  are only valid for the preamble that made them.
+	 */
+	public static String getPreambleHash(int fontsize) {
+		return getPreambleHash(fontsize, false);
+	}
+
+	/** Tight pages (no pdfcrop) get their own preamble and so their own
+	 *  hash, which also covers how tightpage() sizes the page.
+	 */
+	public static String getPreambleHash(int fontsize, boolean tight) {
+		return preambleHashes.computeIfAbsent(fontsize+":"+tight, key -> {
+			ST preamble = newTemplate("preamble");
+			preamble.add("fontsize", fontsize);
+			preamble.add("tight", tight);
+			String text = preamble.render();
+			if ( tight ) {
+				text += newTemplate("tightpage").add("body", "").render();
 			}
+			return md5hash(text);
+		});
+	}
 
-			results = execInDir(tmpdir, "pdf2svg", "temp-crop.pdf", "temp.svg");
-			if ( results[1].length()>0 ) {
-				System.err.println(results[1]);
+	/** Pull (height,depth) pairs, in page order, from the metrics lines in a log */
+	public static List<Pair<Float,Float>> getMetrics(String log) {
+		List<Pair<Float,Float>> metrics = new ArrayList<>();
+		for (String line : log.split("\n")) {
+			if ( line.startsWith(METRICS_PREFIX) ) {
+				int first = METRICS_PREFIX.length();
+				int comma = line.indexOf(',');
+				String heightS = line.substring(first,comma-"pt".length());
+				String depthS = line.substring(comma+1,line.indexOf('p',comma));
+				metrics.add(new Pair<>(Float.parseFloat(heightS), Float.parseFloat(depthS.trim())));
 			}
+		}
+		return metrics;
+	}
 
-			String svgfilename = tmpdir+"/temp.svg";
-			return new Triple<>(new String(Files.readAllBytes(Paths.get(svgfilename))),height,depth);
+	/** Command line to run engine on texfile, from dumped format fmt
+	 *  (a TexFormats path) if not null.
+	 */
+	public static String[] getLatexCommand(String engine, String fmt, String texfile) {
+		List<String> cmd = new ArrayList<>();
+		cmd.add(engine);
+		if ( fmt!=null ) {
+			cmd.add("-fmt="+fmt);
 		}
-		catch (Exception e) {
-			e.printStackTrace();
+		cmd.add("-shell-escape");
+		cmd.add("-interaction=nonstopmode");
+		cmd.add(texfile);
+		return cmd.toArray(new String[0]);
+	}
+
+	public static String getBodyTemplateName(LatexType type) {
+		return getBodyTemplateName(type, false);
+	}
+
+	public static String getBodyTemplateName(LatexType type, boolean tight) {
+		String prefix = tight ? "tight" : "";
+		switch ( type ) {
+			case EQN:
+				return prefix+"eqnbody";
+			case BLOCKEQN:
+				return prefix+"blockeqnbody";
+			default :
+				return prefix+"blocktexbody";
 		}
-		return null;
 	}
 }
\ No newline at end of file
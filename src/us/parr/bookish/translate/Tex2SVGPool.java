@@ -0,0 +1,279 @@
+package us.parr.bookish.translate;
+
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.Triple;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static us.parr.lib.ParrtStrings.md5hash;
+
+/** A pool of Tex2SVG workers so equations typeset on all cores. Each worker
+ *  thread gets its own Tex2SVG with a private scratch directory under
+ *  scratchRoot so temp.tex etc... never collide, not even with another
+ *  build running on the same book.
+ *
+ *  Requests are keyed by type, font size, and equation hash. Asking for an
+ *  equation that is in flight (or already done during this run) gets the
+ *  same future rather than a second render.
+ *
+ *  A pool can outlive a build (Tool -watch): finishBuild() waits for the
+ *  build's equations and forgets them but leaves the workers, and their
+ *  warm xelatex processes, running for the next build.
+ */
+public class Tex2SVGPool {
+	public final String outputDir;
+	public final String scratchRoot;
+	public final int numWorkers;
+
+	/** Name of TexBackend each worker uses; see Tex2SVG.backends */
+	public String backend = "xelatex";
+
+	/** xelatex workers keep a warm xelatex loaded with the preamble; see ResidentXelatex */
+	public boolean warm = false;
+
+	/** xelatex workers size pages to the equation instead of running pdfcrop */
+	public boolean tight = false;
+
+	/** Dumped preamble formats shared by all workers; null means full preamble every run */
+	public TexFormats formats;
+
+	/** Machine-wide equation cache the workers check first; null means none */
+	public SharedEquationCache cache;
+
+	/** Pools for Translators with no Tool, one per outputDir, made on first use */
+	protected static final ConcurrentMap<String,Tex2SVGPool> sharedPools = new ConcurrentHashMap<>();
+
+	protected final ExecutorService workers;
+
+	protected final ConcurrentMap<String,CompletableFuture<Triple<String,Float,Float>>> requests =
+		new ConcurrentHashMap<>();
+
+	protected final List<Tex2SVG> converters = new ArrayList<>();
+
+	protected final ThreadLocal<Tex2SVG> converter = ThreadLocal.withInitial(this::newConverter);
+
+	public Tex2SVGPool(String outputDir, String scratchRoot) {
+		this(outputDir, scratchRoot, Runtime.getRuntime().availableProcessors());
+	}
+
+	public Tex2SVGPool(String outputDir, String scratchRoot, int numWorkers) {
+		this.outputDir = outputDir;
+		this.scratchRoot = scratchRoot;
+		this.numWorkers = Math.max(1, numWorkers);
+		AtomicInteger threadNum = new AtomicInteger(1);
+		this.workers = Executors.newFixedThreadPool(this.numWorkers, r -> {
+			Thread t = new Thread(r, "tex2svg-"+threadNum.getAndIncrement());
+			t.setDaemon(true); // don't hold up exit if somebody forgets shutdown()
+			return t;
+		});
+	}
+
+	/** The pool every Tool-less Translator writing to outputDir shares. It
+	 *  shuts down (tossing its scratch dirs) when the JVM exits.
+	 */
+	public static Tex2SVGPool getShared(String outputDir, String scratchRoot) {
+		return sharedPools.computeIfAbsent(outputDir, dir -> {
+			Tex2SVGPool pool = new Tex2SVGPool(dir, scratchRoot);
+			Runtime.getRuntime().addShutdownHook(new Thread(pool::shutdown, "tex2svg-shutdown"));
+			return pool;
+		});
+	}
+
+	/** Queue one equation; the future yields (svg,height,depth) or null if latex failed */
+	public Future<Triple<String,Float,Float>> submit(String latex, Tex2SVG.LatexType type, int fontsize) {
+		CompletableFuture<Triple<String,Float,Float>> f = new CompletableFuture<>();
+		CompletableFuture<Triple<String,Float,Float>> existing = requests.putIfAbsent(getKey(latex, type, fontsize), f);
+		if ( existing!=null ) {
+			return existing;
+		}
+		workers.submit(() -> complete(f, latex, type, fontsize));
+		return f;
+	}
+
+	/** Queue a list of equations, split into one batch per worker so each
+	 *  worker pays for a single latex run. Equations already requested
+	 *  are not typeset again. Returns one future per equation in order.
+	 */
+	public List<Future<Triple<String,Float,Float>>> submitBatch(List<Pair<String,Tex2SVG.LatexType>> equations, int fontsize) {
+		List<Future<Triple<String,Float,Float>>> futures = new ArrayList<>();
+		List<Pair<String,Tex2SVG.LatexType>> todo = new ArrayList<>();
+		List<CompletableFuture<Triple<String,Float,Float>>> todoFutures = new ArrayList<>();
+		for (Pair<String,Tex2SVG.LatexType> eqn : equations) {
+			CompletableFuture<Triple<String,Float,Float>> f = new CompletableFuture<>();
+			CompletableFuture<Triple<String,Float,Float>> existing = requests.putIfAbsent(getKey(eqn.a, eqn.b, fontsize), f);
+			if ( existing!=null ) {
+				futures.add(existing);
+				continue;
+			}
+			futures.add(f);
+			todo.add(eqn);
+			todoFutures.add(f);
+		}
+
+		int batchSize = (todo.size()+numWorkers-1) / numWorkers;
+		for (int i = 0; i<todo.size(); i += batchSize) {
+			int stop = Math.min(i+batchSize, todo.size());
+			List<Pair<String,Tex2SVG.LatexType>> batch = todo.subList(i, stop);
+			List<CompletableFuture<Triple<String,Float,Float>>> batchFutures = todoFutures.subList(i, stop);
+			workers.submit(() -> completeBatch(batchFutures, batch, fontsize));
+		}
+		return futures;
+	}
+
+	/** Wait for a rendering; null if it failed */
+	public static Triple<String,Float,Float> await(Future<Triple<String,Float,Float>> f) {
+		try {
+			return f.get();
+		}
+		catch (Exception e) {
+			e.printStackTrace(System.err);
+		}
+		return null;
+	}
+
+	/** Wait for every equation asked for so far then forget them, so the
+	 *  next build asks the equation store first. Workers stay up.
+	 */
+	public void finishBuild() {
+		for (Future<Triple<String,Float,Float>> f : requests.values()) {
+			try {
+				f.get();
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (ExecutionException ee) {
+				// whoever asked for it got the same failure from await()
+			}
+		}
+		requests.clear();
+	}
+
+	/** Stop worker threads and toss their scratch directories */
+	public void shutdown() {
+		workers.shutdown();
+		try {
+			workers.awaitTermination(10, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized ( converters ) {
+			for (Tex2SVG c : converters) {
+				c.close();
+				deleteRecursively(Paths.get(c.workDir));
+			}
+			converters.clear();
+		}
+	}
+
+	protected void complete(CompletableFuture<Triple<String,Float,Float>> f,
+	                        String latex, Tex2SVG.LatexType type, int fontsize)
+	{
+		try {
+			f.complete(getConverter().tex2svg(latex, type, fontsize));
+		}
+		catch (Throwable t) {
+			f.completeExceptionally(t);
+		}
+	}
+
+	protected void completeBatch(List<CompletableFuture<Triple<String,Float,Float>>> futures,
+	                             List<Pair<String,Tex2SVG.LatexType>> batch,
+	                             int fontsize)
+	{
+		List<Triple<String,Float,Float>> results = null;
+		if ( batch.size()>1 ) {
+			results = getConverter().tex2svgBatch(batch, fontsize);
+		}
+		for (int i = 0; i<batch.size(); i++) {
+			if ( results!=null ) {
+				futures.get(i).complete(results.get(i));
+			}
+			else { // batch failed (or trivially small); do them one by one
+				complete(futures.get(i), batch.get(i).a, batch.get(i).b, fontsize);
+			}
+		}
+	}
+
+	/** This worker's Tex2SVG, made again if backend changed since (-watch
+	 *  rebuild after the json's eqnBackend changed).
+	 */
+	protected Tex2SVG getConverter() {
+		Tex2SVG c = converter.get();
+		if ( !c.backend.getName().equals(backend) ) {
+			synchronized ( converters ) {
+				converters.remove(c);
+			}
+			c.close();
+			deleteRecursively(Paths.get(c.workDir));
+			c = newConverter();
+			converter.set(c);
+		}
+		return c;
+	}
+
+	protected Tex2SVG newConverter() {
+		try {
+			Files.createDirectories(Paths.get(scratchRoot));
+			// unique per process too so concurrent builds of same book can't collide
+			Path workDir = Files.createTempDirectory(Paths.get(scratchRoot), "worker-");
+			TexBackend b = Tex2SVG.newBackend(backend);
+			configure(b);
+			Tex2SVG c = new Tex2SVG(outputDir, workDir.toString(), b);
+			c.cache = cache;
+			synchronized ( converters ) {
+				converters.add(c);
+			}
+			return c;
+		}
+		catch (IOException ioe) {
+			throw new RuntimeException("can't create tex2svg scratch dir in "+scratchRoot, ioe);
+		}
+	}
+
+	protected void configure(TexBackend b) {
+		b.setFormats(formats);
+		if ( b instanceof XelatexBackend ) {
+			((XelatexBackend) b).warm = warm;
+			((XelatexBackend) b).tight = tight;
+		}
+		else if ( b instanceof JavaMathBackend ) {
+			configure(((JavaMathBackend) b).fallback);
+		}
+	}
+
+	public static String getKey(String latex, Tex2SVG.LatexType type, int fontsize) {
+		return type+":"+fontsize+":"+md5hash(latex.trim());
+	}
+
+	protected static void deleteRecursively(Path dir) {
+		try {
+			if ( !Files.exists(dir) ) return;
+			Files.walk(dir)
+				.sorted(Comparator.reverseOrder()) // kids before parents
+				.map(Path::toFile)
+				.forEach(File::delete);
+		}
+		catch (IOException ioe) {
+			System.err.println("can't remove "+dir+": "+ioe.getMessage());
+		}
+	}
+}
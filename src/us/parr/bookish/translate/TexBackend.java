@@ -0,0 +1,43 @@
+package us.parr.bookish.translate;
+
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.Triple;
+
+import java.util.List;
+
+/** A way to turn latex into (svg,height,depth). Tex2SVG owns one per
+ *  worker and hands it a private work directory, so implementations
+ *  may keep state but need not be thread safe. Select with
+ *  -eqn-backend name or "eqnBackend" in book.json; see Tex2SVG.backends.
+ */
+public interface TexBackend {
+	String getName();
+
+	/** Return (svg,height,depth) for latex. If latex ran but produced no
+	 *  pages (a broken equation), svg is null. Return null or throw if we
+	 *  couldn't run the tools at all.
+	 */
+	Triple<String,Float,Float> tex2svg(String workDir, String latex, Tex2SVG.LatexType type, int fontsize)
+		throws Exception;
+
+	/** Typeset a list of equations in as few tool runs as possible. Return
+	 *  one (svg,height,depth) per equation in order or null if we can't,
+	 *  in which case the caller does them one by one.
+	 */
+	default List<Triple<String,Float,Float>> tex2svgBatch(String workDir,
+	                                                      List<Pair<String,Tex2SVG.LatexType>> equations,
+	                                                      int fontsize)
+		throws Exception
+	{
+		return null;
+	}
+
+	/** Does this backend make tight pages (and so different svg)? */
+	default boolean isTight() { return false; }
+
+	/** Start latex runs from dumped preamble formats where we can; see TexFormats */
+	default void setFormats(TexFormats formats) { }
+
+	/** Release any processes */
+	default void close() { }
+}
@@ -0,0 +1,106 @@
+package us.parr.bookish.translate;
+
+import org.stringtemplate.v4.ST;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static us.parr.lib.ParrtStrings.md5hash;
+import static us.parr.lib.ParrtSys.execInDir;
+
+/** Formats with the eqntex.stg preamble already loaded, one per engine and
+ *  preamble hash, dumped with "engine -ini &engine texformat.tex" the
+ *  first time somebody needs one. An equation run then starts with
+ *  -fmt=... from a document that's just \begin{document}...\end{document}
+ *  rather than loading the class, packages, and symbol fonts every time.
+ *
+ *  The .fmt files live in dir (under the build dir) and survive across
+ *  runs; the name includes a hash of the preamble and the engine's version
+ *  line so editing eqntex.stg or upgrading TeX Live gets a new one (an old
+ *  format with a new engine is a fatal error on every run).
+ *
+ *  Thread safe; each format is built once even if every worker asks for
+ *  it at the same time.
+ */
+public class TexFormats {
+	public final String dir;
+
+	/** engine:fontsize:tight to format path sans .fmt; empty if we couldn't build it */
+	protected final ConcurrentMap<String,Optional<String>> formats = new ConcurrentHashMap<>();
+
+	/** engine to first line of "engine --version" */
+	protected final ConcurrentMap<String,String> versions = new ConcurrentHashMap<>();
+
+	public TexFormats(String dir) {
+		this.dir = new java.io.File(dir).getAbsolutePath();
+	}
+
+	/** Return absolute path (minus .fmt) to pass to -fmt or null if the
+	 *  format won't build; caller should use the full preamble.
+	 */
+	public String getFormat(String engine, int fontsize, boolean tight) {
+		String key = engine+":"+fontsize+":"+tight;
+		return formats.computeIfAbsent(key, k -> Optional.ofNullable(build(engine, fontsize, tight))).orElse(null);
+	}
+
+	protected String build(String engine, int fontsize, boolean tight) {
+		String name = "bookish-"+engine+"-"+md5hash(Tex2SVG.getPreambleHash(fontsize, tight)+":"+getVersion(engine));
+		Path fmt = Paths.get(dir, name+".fmt");
+		if ( Files.exists(fmt) ) {
+			return Paths.get(dir, name).toString();
+		}
+		Path tmpdir = null;
+		try {
+			Files.createDirectories(Paths.get(dir));
+			// private dir so a concurrent build can't see a half-written format
+			tmpdir = Files.createTempDirectory(Paths.get(dir), name+"-");
+			ST template = Tex2SVG.newTemplate("texformat");
+			template.add("fontsize", fontsize);
+			template.add("tight", tight);
+			Files.write(tmpdir.resolve(name+".tex"), template.render().getBytes());
+			String[] results = execInDir(tmpdir.toString(), engine, "-ini", "-jobname="+name,
+			                             "-interaction=nonstopmode", "&"+engine, name+".tex");
+			Path built = tmpdir.resolve(name+".fmt");
+			if ( !Files.exists(built) ) {
+				System.err.println("can't build "+engine+" format for equations; using full preamble");
+				if ( results[1].length()>0 ) {
+					System.err.println(results[1]);
+				}
+				return null;
+			}
+			Files.move(built, fmt, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			return Paths.get(dir, name).toString();
+		}
+		catch (Exception e) {
+			System.err.println("can't build "+engine+" format for equations: "+e.getMessage());
+			return null;
+		}
+		finally {
+			if ( tmpdir!=null ) {
+				Tex2SVGPool.deleteRecursively(tmpdir);
+			}
+		}
+	}
+
+	/** First line of "engine --version", like "XeTeX 3.14159265-2.6-0.99999
+	 *  (TeX Live 2018)", or "unknown" if we can't run it.
+	 */
+	public String getVersion(String engine) {
+		return versions.computeIfAbsent(engine, e -> {
+			try {
+				String[] results = execInDir(".", e, "--version");
+				String out = results[0].trim();
+				return out.isEmpty() ? "unknown" : out.split("\n")[0].trim();
+			}
+			catch (Exception ex) {
+				return "unknown";
+			}
+		});
+	}
+}
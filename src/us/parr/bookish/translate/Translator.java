@@ -2,11 +2,12 @@ package us.parr.bookish.translate;
 
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.misc.Pair;
 import org.antlr.v4.runtime.misc.Triple;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.antlr.v4.runtime.tree.TerminalNode;
-import org.antlr.v4.runtime.tree.xpath.XPath;
 import org.stringtemplate.v4.STGroupFile;
 import org.stringtemplate.v4.StringRenderer;
 import us.parr.bookish.Tool;
@@ -82,31 +83,37 @@ import us.parr.bookish.model.ref.SectionRef;
 import us.parr.bookish.model.ref.SideNoteRef;
 import us.parr.bookish.model.ref.SiteRef;
 import us.parr.bookish.model.ref.UnknownRef;
+import us.parr.bookish.parse.BookishLexer;
 import us.parr.bookish.parse.BookishParser;
+import us.parr.bookish.parse.BookishParserBaseListener;
 import us.parr.bookish.parse.BookishParserBaseVisitor;
-import us.parr.bookish.parse.XMLLexer;
-import us.parr.bookish.parse.XMLParser;
 import us.parr.bookish.util.DataTable;
 
-import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static us.parr.bookish.parse.BookishParser.END_TAG;
 import static us.parr.bookish.translate.Tex2SVG.LatexType.BLOCKEQN;
+import static us.parr.bookish.translate.Tex2SVG.LatexType.EQN;
 import static us.parr.bookish.translate.Tex2SVG.LatexType.LATEX;
 import static us.parr.lib.ParrtCollections.join;
+import static us.parr.lib.ParrtIO.basename;
+import static us.parr.lib.ParrtIO.stripFileExtension;
 import static us.parr.lib.ParrtStrings.md5hash;
 import static us.parr.lib.ParrtStrings.stripQuotes;
 
@@ -129,12 +136,17 @@ public class Translator extends BookishParserBaseVisitor<OutputModelObject> {
 
 	public STGroupFile templates;
 
-	public static Pattern eqnVarPattern;
-	public static Pattern eqnVecVarPattern, eqnVecVarPattern2;
-	public static Pattern eqnIndexedVarPattern;
-	public static Pattern eqnIndexedVecVarPattern, eqnIndexedVecVarPattern2;
-	public static Pattern sectionAnchorPattern;
-	public static Pattern latexPattern;
+	public static final Pattern eqnVarPattern = Pattern.compile("([a-zA-Z][a-zA-Z0-9]*)");
+	public static final Pattern eqnIndexedVarPattern = Pattern.compile("([a-zA-Z][a-zA-Z0-9]*)_([a-zA-Z][a-zA-Z0-9]*)");
+	public static final Pattern eqnVecVarPattern = Pattern.compile("\\\\mathbf\\{([a-zA-Z][a-zA-Z0-9]*)\\}");
+	public static final Pattern eqnVecVarPattern2 = Pattern.compile("\\\\vec\\{([a-zA-Z][a-zA-Z0-9]*)\\}");
+	public static final Pattern eqnIndexedVecVarPattern = Pattern.compile("\\\\mathbf\\{([a-zA-Z][a-zA-Z0-9]*)\\}_([a-zA-Z][a-zA-Z0-9]*)");
+	public static final Pattern eqnIndexedVecVarPattern2 = Pattern.compile("\\\\vec\\{([a-zA-Z][a-zA-Z0-9]*)\\}_([a-zA-Z][a-zA-Z0-9]*)");
+	public static final Pattern sectionAnchorPattern = Pattern.compile(".*\\(([a-zA-Z_][a-zA-Z0-9\\-_:]*?)\\)");
+	public static final Pattern latexPattern = Pattern.compile("\\\\latex\\{\\{(.*?)\\}\\}", Pattern.DOTALL);
+	public static final Pattern svgPrologPattern = Pattern.compile("<\\?xml[^>]*\\?>|<!DOCTYPE[^>]*>");
+	public static final Pattern svgIDPattern = Pattern.compile("\\bid=([\"'])"); // dvisvgm uses '
+	public static final Pattern svgRefPattern = Pattern.compile("(href=[\"']|url\\([\"']?)#");
 
 	public String outputDir;
 	public Tool.Target target;
@@ -142,7 +154,18 @@ public class Translator extends BookishParserBaseVisitor<OutputModelObject> {
 	public Book book;
 	public Map<String, EntityDef> entities;
 	public Document document;
-	public Tex2SVG texConverter;
+	public Tex2SVGPool texConverter;
+	public EquationStore eqnStore;
+
+	/** See Tool.embedEqns */
+	public String embedEqns;
+	public int embedEqnMaxBytes = 4096;
+
+	/** See Tool.mathml */
+	public boolean mathml;
+
+	/** This chapter's equations for -embed-eqns sprite */
+	public SVGSprite sprite;
 
 	public Translator(Book book, Map<String, EntityDef> entities, Tool.Target target, String outputDir) {
 		this.book = book;
@@ -168,16 +191,17 @@ public class Translator extends BookishParserBaseVisitor<OutputModelObject> {
 		}
 		this.outputDir = outputDir;
 
-		texConverter = new Tex2SVG(outputDir);
-
-		eqnVarPattern = Pattern.compile("([a-zA-Z][a-zA-Z0-9]*)");
-		eqnIndexedVarPattern = Pattern.compile("([a-zA-Z][a-zA-Z0-9]*)_([a-zA-Z][a-zA-Z0-9]*)");
-		eqnVecVarPattern = Pattern.compile("\\\\mathbf\\{([a-zA-Z][a-zA-Z0-9]*)\\}");
-		eqnVecVarPattern2 = Pattern.compile("\\\\vec\\{([a-zA-Z][a-zA-Z0-9]*)\\}");
-		eqnIndexedVecVarPattern = Pattern.compile("\\\\mathbf\\{([a-zA-Z][a-zA-Z0-9]*)\\}_([a-zA-Z][a-zA-Z0-9]*)");
-		eqnIndexedVecVarPattern2 = Pattern.compile("\\\\vec\\{([a-zA-Z][a-zA-Z0-9]*)\\}_([a-zA-Z][a-zA-Z0-9]*)");
-		sectionAnchorPattern = Pattern.compile(".*\\(([a-zA-Z_][a-zA-Z0-9\\-_:]*?)\\)");
-		latexPattern = Pattern.compile("\\\\latex\\{\\{(.*?)\\}\\}", Pattern.DOTALL);
+		if ( book!=null && book.tool!=null && book.tool.tex2svg!=null ) {
+			texConverter = book.tool.tex2svg; // share workers, store across chapters
+			eqnStore = book.tool.eqnStore;
+			embedEqns = book.tool.embedEqns;
+			embedEqnMaxBytes = book.tool.embedEqnMaxBytes;
+			mathml = book.tool.mathml;
+		}
+		else {
+			texConverter = Tex2SVGPool.getShared(outputDir, Tool.BUILD_DIR+"/tex2svg");
+			eqnStore = new EquationStore(outputDir);
+		}
 	}
 
 	@Override
@@ -202,7 +226,23 @@ public class Translator extends BookishParserBaseVisitor<OutputModelObject> {
 		this.document = new Document(ctx);
 		document.book = book;
 		document.entities = entities;
+		if ( target==Tool.Target.HTML ) {
+			prerenderEquations(ctx);
+			if ( "sprite".equals(embedEqns) ) {
+				String chapter = stripFileExtension(basename(ctx.start.getTokenSource().getSourceName()));
+				sprite = new SVGSprite("images/"+chapter+"-eqns.svg");
+			}
+		}
 		document.chapter = (Chapter)visit(ctx.chapter());
+		if ( sprite!=null && !sprite.isEmpty() ) {
+			try {
+				EquationStore.writeAtomically(Paths.get(outputDir, sprite.filename), sprite.render());
+				System.out.println(outputDir+"/"+sprite.filename);
+			}
+			catch (IOException ioe) {
+				System.err.println("can't write "+sprite.filename+": "+ioe.getMessage());
+			}
+		}
 		return document;
 	}
 
@@ -373,11 +413,9 @@ public class Translator extends BookishParserBaseVisitor<OutputModelObject> {
 				elements.add(c);
 			}
 		}
-		// find all REFs within paragraph
-		Collection<ParseTree> refNodes =
-			XPath.findAll(ctx, "//REF", new BookishParser(null));
+		// parser collected all REFs within paragraph
 		List<EntityDef> entitiesRefd = new ArrayList<>();
-		for (ParseTree t : refNodes) {
+		for (Token t : ctx.refs) {
 			String label = stripQuotes(t.getText());
 			EntityDef def = document.getEntity(label);
 			if ( def!=null ) {
@@ -409,64 +447,310 @@ public class Translator extends BookishParserBaseVisitor<OutputModelObject> {
 
 	@Override
 	public OutputModelObject visitLatex(BookishParser.LatexContext ctx) {
-		String text = ctx.getText().trim();
-		List<String> stuff = extract(latexPattern, text); // \latex{{...}}
-		text = stuff.get(0);
+		String text = getLatexText(ctx);
 
 		if ( target==Tool.Target.LATEX || target==Tool.Target.LATEX_BOOK ) {
 			return new Latex(this, null, text, text);
 		}
 
-		String relativePath = "images/latex-"+md5hash(text)+".svg";
-		String src = outputDir+"/"+relativePath;
-		Path outpath = Paths.get(src);
-		if ( !Files.exists(outpath) ) {
-			Triple<String,Float,Float> results = texConverter.tex2svg(text, LATEX, BLOCK_EQN_FONT_SIZE);
-			String svg = results.a;
-			try {
-				System.out.println(outpath);
-				Files.write(outpath, svg.getBytes());
-			} catch (IOException ioe) {
-				ioe.printStackTrace();
-			}
+		EquationStore.Entry e = getTypesetEquation(ctx.start.getLine(), text, LATEX, BLOCK_EQN_FONT_SIZE);
+		if ( e==null ) {
+			return null;
+		}
+		Latex latex = new Latex(this, e.file, text, text);
+		if ( "sprite".equals(embedEqns) ) {
+			latex.sprite = getSpriteSymbol(e);
 		}
-		return new Latex(this, relativePath, text, text);
+		else if ( embedEqns!=null ) {
+			String svg = getEmbeddableSVG(e);
+			if ( embedEqns.equals("svg") ) latex.svg = svg;
+			else if ( svg!=null ) latex.attrs.put("src", getDataURI(svg));
+		}
+		return latex;
 	}
 
 	@Override
 	public OutputModelObject visitBlock_eqn(BookishParser.Block_eqnContext ctx) {
-		String eqn = stripQuotes(ctx.getText(), 3);
+		String eqn = getBlockEqnText(ctx);
 
 		if ( target==Tool.Target.LATEX || target==Tool.Target.LATEX_BOOK ) {
 			return new BlockEquation(this, null, eqn);
 		}
 
-		String relativePath = "images/blkeqn-"+md5hash(eqn)+".svg";
-		String src = outputDir+"/"+relativePath;
-		Path outpath = Paths.get(src);
-		if ( !Files.exists(outpath) ) {
-			Triple<String,Float,Float> results = texConverter.tex2svg(eqn, BLOCKEQN, BLOCK_EQN_FONT_SIZE);
-			String svg = results.a;
-
-			try {
-				System.out.println(outpath);
-				Files.write(outpath, svg.getBytes());
-			} catch (IOException ioe) {
-				ioe.printStackTrace();
+		if ( mathml ) {
+			String math = MathMLWriter.toMathML(eqn, true);
+			if ( math!=null ) {
+				BlockEquation blk = new BlockEquation(this, null, eqn);
+				blk.mathml = math;
+				return blk;
 			}
 		}
-		return new BlockEquation(this, relativePath, eqn);
+
+		EquationStore.Entry e = getTypesetEquation(ctx.start.getLine(), eqn, BLOCKEQN, BLOCK_EQN_FONT_SIZE);
+		if ( e==null ) {
+			return null;
+		}
+		BlockEquation blk = new BlockEquation(this, e.file, eqn);
+		if ( "sprite".equals(embedEqns) ) {
+			blk.sprite = getSpriteSymbol(e);
+		}
+		else if ( embedEqns!=null ) {
+			String svg = getEmbeddableSVG(e);
+			if ( embedEqns.equals("svg") ) blk.svg = svg;
+			else if ( svg!=null ) blk.attrs.put("src", getDataURI(svg));
+		}
+		return blk;
 	}
 
 	@Override
 	public OutputModelObject visitEqn(BookishParser.EqnContext ctx) {
-		String eqn = stripQuotes(ctx.getText());
+		String eqn = getEqnText(ctx);
 
 		if ( target==Tool.Target.LATEX || target==Tool.Target.LATEX_BOOK ) {
 			return new InlineEquation(null, eqn, -1, -1);
 		}
 
+		if ( mathml ) {
+			String math = MathMLWriter.toMathML(eqn, false);
+			if ( math!=null ) {
+				InlineEquation inline = new InlineEquation(null, eqn, -1, -1);
+				inline.mathml = math;
+				return inline;
+			}
+		}
+
 		// check for special cases like $w$ and $\mathbf{w}_i$.
+		OutputModelObject simple = getSimpleEqn(eqn);
+		if ( simple!=null ) {
+			return simple;
+		}
+
+		EquationStore.Entry e = getTypesetEquation(ctx.start.getLine(), eqn, EQN, INLINE_EQN_FONT_SIZE);
+		if ( e==null ) {
+			return null;
+		}
+		InlineEquation inline = new InlineEquation(e.file, eqn, e.height, e.depth);
+		if ( "sprite".equals(embedEqns) ) {
+			inline.sprite = getSpriteSymbol(e);
+		}
+		else if ( embedEqns!=null ) {
+			String svg = getEmbeddableSVG(e);
+			if ( embedEqns.equals("svg") ) inline.svg = svg;
+			else if ( svg!=null ) inline.src = getDataURI(svg);
+		}
+		return inline;
+	}
+
+	/** Return svg for e ready to drop into the html, or null if it's too big
+	 *  to embed (or we can't read it). Ids get a prefix unique to the
+	 *  equation because every svg from pdf2svg names its glyphs glyph0-1 etc...
+	 *  and inline svg elements share one id space with the whole page.
+	 */
+	public String getEmbeddableSVG(EquationStore.Entry e) {
+		Path path = Paths.get(outputDir, e.file);
+		try {
+			if ( Files.size(path)>embedEqnMaxBytes ) {
+				return null;
+			}
+			String svg = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+			svg = svgPrologPattern.matcher(svg).replaceAll("").trim();
+			String prefix = "e"+md5hash(e.file).substring(0, 8)+"-";
+			svg = svgIDPattern.matcher(svg).replaceAll("id=$1"+prefix);
+			svg = svgRefPattern.matcher(svg).replaceAll("$1#"+prefix);
+			return svg;
+		}
+		catch (IOException ioe) {
+			System.err.println("can't embed "+path+": "+ioe.getMessage());
+		}
+		return null;
+	}
+
+	/** Add e's svg to this chapter's sprite; null if we can't */
+	public SVGSprite.Symbol getSpriteSymbol(EquationStore.Entry e) {
+		Path path = Paths.get(outputDir, e.file);
+		try {
+			String svg = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+			return sprite.add(e.file, svg);
+		}
+		catch (IOException ioe) {
+			System.err.println("can't add "+path+" to "+sprite.filename+": "+ioe.getMessage());
+		}
+		return null;
+	}
+
+	/** Percent-encode just enough of svg to sit in a double-quoted src attribute */
+	public static String getDataURI(String svg) {
+		StringBuilder buf = new StringBuilder("data:image/svg+xml;utf8,");
+		for (char c : svg.toCharArray()) {
+			switch ( c ) {
+				case '%' : buf.append("%25"); break;
+				case '#' : buf.append("%23"); break;
+				case '"' : buf.append("%22"); break;
+				case '<' : buf.append("%3C"); break;
+				case '>' : buf.append("%3E"); break;
+				case '\n' : buf.append(' '); break;
+				default : buf.append(c);
+			}
+		}
+		return buf.toString();
+	}
+
+	/** Look up svg for latex in the equation store, typesetting it if it's not
+	 *  there. Return null if latex can't (or couldn't last time) typeset it.
+	 */
+	public EquationStore.Entry getTypesetEquation(int line, String latex, Tex2SVG.LatexType type, int fontsize) {
+		EquationStore.Entry e = eqnStore.get(latex, type, fontsize);
+		if ( e==null ) {
+			Future<Triple<String,Float,Float>> f = texConverter.submit(latex, type, fontsize);
+			Triple<String,Float,Float> results = Tex2SVGPool.await(f);
+			if ( results==null ) {
+				return null; // couldn't run tools; don't record failure
+			}
+			e = eqnStore.put(latex, type, fontsize, results);
+			if ( e!=null && !e.failed() ) {
+				System.out.println(outputDir+"/"+e.file);
+			}
+		}
+		if ( e==null || e.failed() ) {
+			System.err.printf("line %d: can't typeset %s\n", line, latex);
+			return null;
+		}
+		return e;
+	}
+
+	/** Typeset every equation in tree not in the equation store in one latex
+	 *  run per worker (per font size) rather than one run per equation. The
+	 *  visitEqn() etc... methods then just find them in the store.
+	 */
+	public void prerenderEquations(ParseTree tree) {
+		List<Pair<String,Tex2SVG.LatexType>> equations = getEquations(tree);
+		if ( mathml ) {
+			equations = getNonMathMLEquations(equations);
+		}
+		Pair<List<Pair<String,Tex2SVG.LatexType>>,List<Pair<String,Tex2SVG.LatexType>>> todo =
+			getUncachedEquations(eqnStore, equations);
+		prerenderEquations(todo.a, INLINE_EQN_FONT_SIZE);
+		prerenderEquations(todo.b, BLOCK_EQN_FONT_SIZE);
+	}
+
+	/** Split equations not in store into those typeset at the inline font
+	 *  size and those at the block size. If the sizes are the same, they
+	 *  all go in the first list so they can share a batch.
+	 */
+	public static Pair<List<Pair<String,Tex2SVG.LatexType>>,List<Pair<String,Tex2SVG.LatexType>>>
+	getUncachedEquations(EquationStore store, List<Pair<String,Tex2SVG.LatexType>> equations)
+	{
+		List<Pair<String,Tex2SVG.LatexType>> inline = new ArrayList<>();
+		List<Pair<String,Tex2SVG.LatexType>> blocks = new ArrayList<>();
+		for (Pair<String,Tex2SVG.LatexType> eqn : equations) {
+			if ( eqn.b==EQN ) {
+				if ( store.get(eqn.a, EQN, INLINE_EQN_FONT_SIZE)==null ) {
+					inline.add(eqn);
+				}
+			}
+			else if ( store.get(eqn.a, eqn.b, BLOCK_EQN_FONT_SIZE)==null ) {
+				blocks.add(eqn);
+			}
+		}
+
+		if ( INLINE_EQN_FONT_SIZE==BLOCK_EQN_FONT_SIZE ) {
+			inline.addAll(blocks);
+			blocks.clear();
+		}
+		return new Pair<>(inline, blocks);
+	}
+
+	/** Equations we can't do as MathML (and \latex blocks); they still need svg */
+	public static List<Pair<String,Tex2SVG.LatexType>> getNonMathMLEquations(List<Pair<String,Tex2SVG.LatexType>> equations) {
+		List<Pair<String,Tex2SVG.LatexType>> rest = new ArrayList<>();
+		for (Pair<String,Tex2SVG.LatexType> eqn : equations) {
+			if ( eqn.b==LATEX || MathMLWriter.toMathML(eqn.a, eqn.b==BLOCKEQN)==null ) {
+				rest.add(eqn);
+			}
+		}
+		return rest;
+	}
+
+	protected void prerenderEquations(List<Pair<String,Tex2SVG.LatexType>> equations, int fontsize) {
+		if ( equations.size()==0 ) {
+			return;
+		}
+		List<Future<Triple<String,Float,Float>>> results = texConverter.submitBatch(equations, fontsize);
+		for (int i = 0; i<equations.size(); i++) {
+			Triple<String,Float,Float> svg = Tex2SVGPool.await(results.get(i));
+			if ( svg==null ) {
+				continue; // visitEqn() and friends will try again
+			}
+			EquationStore.Entry e = eqnStore.put(equations.get(i).a, equations.get(i).b, fontsize, svg);
+			if ( e!=null && !e.failed() ) {
+				System.out.println(outputDir+"/"+e.file);
+			}
+		}
+	}
+
+	/** Return unique equations and \latex blocks in tree, in order, that need
+	 *  typesetting (i.e., minus the simple ones we do in HTML).
+	 */
+	public static List<Pair<String,Tex2SVG.LatexType>> getEquations(ParseTree tree) {
+		List<Pair<String,Tex2SVG.LatexType>> equations = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		ParseTreeWalker.DEFAULT.walk(new BookishParserBaseListener() {
+			@Override
+			public void enterEqn(BookishParser.EqnContext ctx) {
+				addEquation(equations, seen, getEqnText(ctx), EQN);
+			}
+
+			@Override
+			public void enterBlock_eqn(BookishParser.Block_eqnContext ctx) {
+				addEquation(equations, seen, getBlockEqnText(ctx), BLOCKEQN);
+			}
+
+			@Override
+			public void enterLatex(BookishParser.LatexContext ctx) {
+				addEquation(equations, seen, getLatexText(ctx), LATEX);
+			}
+		}, tree);
+		return equations;
+	}
+
+	/** Same as getEquations(tree) but from the tokens alone so we can start
+	 *  typesetting before (or while) we parse. Might pick up the odd
+	 *  equation the parser wouldn't translate; typesetting it is harmless.
+	 */
+	public static List<Pair<String,Tex2SVG.LatexType>> getEquations(BookishLexer lexer) {
+		List<Pair<String,Tex2SVG.LatexType>> equations = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		for (Token t : lexer.getAllTokens()) {
+			switch ( t.getType() ) {
+				case BookishLexer.EQN :
+					addEquation(equations, seen, getEqnText(t.getText()), EQN);
+					break;
+				case BookishLexer.BLOCK_EQN :
+					addEquation(equations, seen, getBlockEqnText(t.getText()), BLOCKEQN);
+					break;
+				case BookishLexer.LATEX :
+					addEquation(equations, seen, getLatexText(t.getText()), LATEX);
+					break;
+			}
+		}
+		return equations;
+	}
+
+	protected static void addEquation(List<Pair<String,Tex2SVG.LatexType>> equations,
+	                                  Set<String> seen,
+	                                  String latex,
+	                                  Tex2SVG.LatexType type)
+	{
+		if ( type==EQN && getSimpleEqn(latex)!=null ) {
+			return;
+		}
+		if ( seen.add(type+":"+latex) ) {
+			equations.add(new Pair<>(latex, type));
+		}
+	}
+
+	/** Check for special cases like $w$, $\mathbf{w}_i$, and $x_i^{(k)}$ we can do w/o latex */
+	public static OutputModelObject getSimpleEqn(String eqn) {
 		List<String> elements = extract(eqnVarPattern, eqn);
 		if ( elements.size()>0 ) {
 			return new EqnVar(elements.get(0));
@@ -491,39 +775,32 @@ public class Translator extends BookishParserBaseVisitor<OutputModelObject> {
 		if ( elements.size()>0 ) {
 			return new EqnIndexedVecVar(elements.get(0), elements.get(1));
 		}
+		return MathScanner.scan(eqn); // maybe a bit more complicated but still simple
+	}
 
-		float height=0, depth = 0;
-
-		String prefix = String.format("eqn-%s", md5hash(eqn));
-//		String prefix = String.format("images/eqn-%s",hash(eqn));
-		File[] files =
-			new File(outputDir+"/images")
-				.listFiles((dir, name) -> name.startsWith(prefix));
-		String existing = null;
-		if ( files!=null && files.length>0 ) {
-			existing = files[0].getName();
-			int i = existing.indexOf("-depth");
-			int j = existing.indexOf(".svg", i);
-			String depthS = existing.substring(i+"-depth".length(), j);
-			depth = Float.parseFloat(depthS);
-			return new InlineEquation("images/"+existing, eqn, -1, depth);
-		}
-		Triple<String,Float,Float> results =
-			texConverter.tex2svg(eqn, Tex2SVG.LatexType.EQN, INLINE_EQN_FONT_SIZE);
-		String svg = results.a;
-		height = results.b;
-		depth = results.c;
-		try {
-			String src = String.format("%s/images/%s-depth%06.2f.svg",outputDir,prefix,depth);
-			Path outpath = Paths.get(src);
-			System.out.println(outpath);
-			Files.write(outpath, svg.getBytes());
-			String relativePath = String.format("images/%s-depth%06.2f.svg",prefix,depth);
-			return new InlineEquation(relativePath, eqn, height, depth);
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
-		}
-		return null;
+	public static String getEqnText(BookishParser.EqnContext ctx) {
+		return getEqnText(ctx.getText());
+	}
+
+	public static String getEqnText(String tokenText) {
+		return stripQuotes(tokenText);
+	}
+
+	public static String getBlockEqnText(BookishParser.Block_eqnContext ctx) {
+		return getBlockEqnText(ctx.getText());
+	}
+
+	public static String getBlockEqnText(String tokenText) {
+		return stripQuotes(tokenText, 3);
+	}
+
+	public static String getLatexText(BookishParser.LatexContext ctx) {
+		return getLatexText(ctx.getText());
+	}
+
+	public static String getLatexText(String tokenText) {
+		List<String> stuff = extract(latexPattern, tokenText.trim()); // \latex{{...}}
+		return stuff.get(0);
 	}
 
 	@Override
@@ -937,52 +1214,69 @@ public class Translator extends BookishParserBaseVisitor<OutputModelObject> {
 		return s;
 	}
 
+	/** Read name=value pairs from inside a tag like <pyeval ...>. A value
+	 *  is a "string" (quotes stripped, \" left alone), a word, or a number.
+	 *  The lexer's ARG rule has already checked the syntax of these tags so
+	 *  a quick scan will do; no lexer and parser per tag.
+	 */
 	public static Map<String,String> parseXMLAttrs(String attrs) {
-		XMLLexer lexer = new XMLLexer(CharStreams.fromString(attrs));
-		CommonTokenStream tokens = new CommonTokenStream(lexer);
-		XMLParser parser = new XMLParser(tokens);
-		XMLParser.AttrsContext attrsTree = parser.attrs();
-		Map<String,String> attrMap = attrsTree.attrMap;
+		Map<String,String> attrMap = new LinkedHashMap<>();
+		int n = attrs.length();
+		int i = skipXMLSpace(attrs, 0);
+		while ( i<n ) {
+			int nameStart = i;
+			while ( i<n && isXMLAttrChar(attrs.charAt(i)) ) i++;
+			String name = attrs.substring(nameStart, i);
+			i = skipXMLSpace(attrs, i);
+			if ( name.isEmpty() || i>=n || attrs.charAt(i)!='=' ) {
+				System.err.printf("bad attribute at char %d in '%s'\n", i, attrs);
+				break;
+			}
+			i = skipXMLSpace(attrs, i+1);
+			int valueStart = i;
+			String value;
+			if ( i<n && attrs.charAt(i)=='"' ) {
+				i++;
+				while ( i<n && attrs.charAt(i)!='"' ) {
+					if ( attrs.charAt(i)=='\\' && i+1<n && attrs.charAt(i+1)=='"' ) i++;
+					i++;
+				}
+				if ( i>=n ) {
+					System.err.printf("missing \" at end of '%s'\n", attrs);
+					break;
+				}
+				i++;
+				value = attrs.substring(valueStart+1, i-1);
+			}
+			else if ( i<n && Character.isDigit(attrs.charAt(i)) ) {
+				while ( i<n && Character.isDigit(attrs.charAt(i)) ) i++;
+				if ( i<n && attrs.charAt(i)=='.' ) {
+					i++;
+					while ( i<n && Character.isDigit(attrs.charAt(i)) ) i++;
+				}
+				value = attrs.substring(valueStart, i);
+			}
+			else {
+				while ( i<n && isXMLAttrChar(attrs.charAt(i)) ) i++;
+				value = attrs.substring(valueStart, i);
+				if ( value.isEmpty() ) {
+					System.err.printf("missing value for %s in '%s'\n", name, attrs);
+					break;
+				}
+			}
+			attrMap.put(name, value);
+			i = skipXMLSpace(attrs, i);
+		}
 		return attrMap;
 	}
 
-	/*
-	public static Map<String,String> parseXMLAttrs(String attrs) {
-		Map<String,String> m = new LinkedHashMap<>();
-		StreamTokenizer tokenizer = new StreamTokenizer(new StringReader(attrs));
-		Token t = getToken(tokenizer);
-		while ( t.getType()==TT_WORD ) {
-			String key = t.getText();
-			t = getToken(tokenizer);
-
-		}
-		tokenizer.quoteChar('"');
-		tokenizer.eolIsSignificant(false);
+	protected static int skipXMLSpace(String s, int i) {
+		while ( i<s.length() && " \t\n\r".indexOf(s.charAt(i))>=0 ) i++;
+		return i;
 	}
 
-	public static Token getToken(StreamTokenizer tokenizer) {
-		try {
-			while ( tokenizer.nextToken()!=TT_EOF ) {
-				switch ( tokenizer.ttype ) {
-					case TT_EOF :
-						return new CommonToken(TT_EOF, "");
-					case TT_WORD :
-						return new CommonToken(TT_EOF, tokenizer.sval);
-					case TT_NUMBER :
-						return new CommonToken(TT_EOF, String.valueOf(tokenizer.nval));
-					case ':' :
-						return new CommonToken(':', ":");
-					case '"' :
-						return new CommonToken('"', tokenizer.sval);
-					default :
-						System.err.println("Invalid char in xml attrs: "+(char)(tokenizer.ttype));
-				}
-			}
-		}
-		catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+	protected static boolean isXMLAttrChar(char c) {
+		return (c>='a' && c<='z') || (c>='A' && c<='Z');
 	}
-	*/
 }
 
@@ -0,0 +1,196 @@
+package us.parr.bookish.translate;
+
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.Triple;
+import org.stringtemplate.v4.ST;
+import us.parr.lib.ParrtIO;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static us.parr.lib.ParrtSys.execInDir;
+
+/** The original pipeline: xelatex then pdfcrop then pdf2svg. With tight
+ *  set (-tight-tex), each page is sized to the box TeX measured for the
+ *  equation so the pdf comes out already cropped and pdfcrop never runs.
+ */
+public class XelatexBackend implements TexBackend {
+	/** Keep a warm xelatex process loaded with the preamble (-warm-tex) */
+	public boolean warm = false;
+
+	/** Size pages from \ht0, \dp0, \wd0 rather than running pdfcrop (-tight-tex) */
+	public boolean tight = false;
+
+	/** Preamble formats to start from; null means load the preamble every run */
+	public TexFormats formats;
+	protected ResidentXelatex resident;
+
+	@Override
+	public String getName() { return "xelatex"; }
+
+	@Override
+	public void setFormats(TexFormats formats) { this.formats = formats; }
+
+	@Override
+	public boolean isTight() { return tight; }
+
+	@Override
+	public Triple<String,Float,Float> tex2svg(String tmpdir, String latex, Tex2SVG.LatexType type, int fontsize)
+		throws Exception
+	{
+		if ( warm ) {
+			if ( resident==null ) {
+				resident = new ResidentXelatex(tmpdir);
+				resident.tight = tight;
+			}
+			ST body = Tex2SVG.newTemplate(Tex2SVG.getBodyTemplateName(type, tight));
+			body.add("text", latex);
+			return resident.tex2svg(body.render(), fontsize);
+		}
+
+		String texfilename = tmpdir+"/temp.tex";
+		String fmt = formats!=null ? formats.getFormat("xelatex", fontsize, tight) : null;
+		ST template = Tex2SVG.newTemplate(fmt!=null ? "document" : "texdoc");
+		ST body = Tex2SVG.newTemplate(Tex2SVG.getBodyTemplateName(type, tight));
+		body.add("text", latex);
+		template.add("body", body.render());
+		if ( fmt==null ) { // else preamble is already in the format
+			template.add("fontsize", fontsize);
+		}
+		template.add("tight", tight);
+		Files.write(Paths.get(texfilename), template.render().getBytes());
+		for (String f : new String[] {"temp.log", "temp.pdf", "temp-crop.pdf", "temp.svg"}) {
+			Files.deleteIfExists(Paths.get(tmpdir+"/"+f)); // don't pick up last equation's output
+		}
+
+		String[] results = execInDir(tmpdir, Tex2SVG.getLatexCommand("xelatex", fmt, "temp.tex"));
+
+		float height=0, depth=0;
+		List<Pair<Float,Float>> metrics = Tex2SVG.getMetrics(results[0]);
+		if ( !metrics.isEmpty() ) {
+			height = metrics.get(0).a;
+			depth = metrics.get(0).b;
+		}
+		for (String line : results[0].split("\n")) {
+			if ( line.startsWith("!") || line.startsWith("l.") ) {
+				System.err.println(line);
+				System.err.println(latex);
+			}
+		}
+		if ( results[1].length()>0 ) {
+			System.err.println(results[1]);
+		}
+		if ( Files.exists(Paths.get(tmpdir+"/temp.log")) && !Files.exists(Paths.get(tmpdir+"/temp.pdf")) ) {
+			// latex ran but gave us nothing; it's the equation not the tools
+			System.err.println("no output from latex for: "+latex);
+			return new Triple<>(null,0f,0f);
+		}
+
+		String pdf = "temp.pdf";
+		if ( !tight ) {
+			results = execInDir(tmpdir, "pdfcrop", "temp.pdf");
+			if ( results[1].length()>0 ) {
+				System.err.println(results[1]);
+			}
+			pdf = "temp-crop.pdf";
+		}
+
+		results = execInDir(tmpdir, "pdf2svg", pdf, "temp.svg");
+		if ( results[1].length()>0 ) {
+			System.err.println(results[1]);
+		}
+
+		String svgfilename = tmpdir+"/temp.svg";
+		return new Triple<>(new String(Files.readAllBytes(Paths.get(svgfilename))),height,depth);
+	}
+
+	/** Typeset a whole list of equations as the pages of a single document
+	 *  so xelatex, pdfcrop, and pdf2svg run once per batch not once per
+	 *  equation. Returns (svg,height,depth) for each equation in order or null
+	 *  if the pages don't line up with the input (e.g., a latex error swallowed
+	 *  a page); caller should fall back on tex2svg() one equation at a time.
+	 */
+	@Override
+	public List<Triple<String,Float,Float>> tex2svgBatch(String tmpdir,
+	                                                     List<Pair<String,Tex2SVG.LatexType>> equations,
+	                                                     int fontsize)
+		throws Exception
+	{
+		List<String> bodies = new ArrayList<>();
+		for (Pair<String,Tex2SVG.LatexType> eqn : equations) {
+			ST body = Tex2SVG.newTemplate(Tex2SVG.getBodyTemplateName(eqn.b, tight));
+			body.add("text", eqn.a.trim());
+			bodies.add(body.render());
+		}
+		String fmt = formats!=null ? formats.getFormat("xelatex", fontsize, tight) : null;
+		ST template = Tex2SVG.newTemplate(fmt!=null ? "batchdocument" : "texbatch");
+		template.add("bodies", bodies);
+		if ( fmt==null ) { // else preamble is already in the format
+			template.add("fontsize", fontsize);
+		}
+		template.add("tight", tight);
+		Files.write(Paths.get(tmpdir+"/temp-batch.tex"), template.render().getBytes());
+
+		// clear out pages from any previous batch so we can't pick up stale svg
+		File[] oldPages = new File(tmpdir).listFiles((dir, name) -> name.startsWith("temp-batch-") && name.endsWith(".svg"));
+		if ( oldPages!=null ) {
+			for (File f : oldPages) {
+				f.delete();
+			}
+		}
+
+		String[] results = execInDir(tmpdir, Tex2SVG.getLatexCommand("xelatex", fmt, "temp-batch.tex"));
+		if ( results[1].length()>0 ) {
+			System.err.println(results[1]);
+		}
+		String log = ParrtIO.load(tmpdir+"/temp-batch.log");
+		for (String line : log.split("\n")) {
+			if ( line.startsWith("!") || line.startsWith("l.") ) {
+				System.err.println(line);
+			}
+		}
+		List<Pair<Float,Float>> metrics = Tex2SVG.getMetrics(log);
+		if ( metrics.size()!=equations.size() ) {
+			System.err.printf("equation batch has %d metrics for %d equations\n", metrics.size(), equations.size());
+			return null;
+		}
+
+		String pdf = "temp-batch.pdf";
+		if ( !tight ) {
+			results = execInDir(tmpdir, "pdfcrop", "temp-batch.pdf");
+			if ( results[1].length()>0 ) {
+				System.err.println(results[1]);
+			}
+			pdf = "temp-batch-crop.pdf";
+		}
+
+		results = execInDir(tmpdir, "pdf2svg", pdf, "temp-batch-%d.svg", "all");
+		if ( results[1].length()>0 ) {
+			System.err.println(results[1]);
+		}
+
+		List<Triple<String,Float,Float>> svgs = new ArrayList<>();
+		for (int i = 0; i<equations.size(); i++) {
+			File svgfile = new File(tmpdir+"/temp-batch-"+(i+1)+".svg"); // pdf2svg pages start at 1
+			if ( !svgfile.exists() ) {
+				System.err.printf("equation batch missing page %d of %d\n", i+1, equations.size());
+				return null;
+			}
+			Pair<Float,Float> m = metrics.get(i);
+			svgs.add(new Triple<>(new String(Files.readAllBytes(svgfile.toPath())), m.a, m.b));
+		}
+		return svgs;
+	}
+
+	/** Kill any resident xelatex */
+	@Override
+	public void close() {
+		if ( resident!=null ) {
+			resident.close();
+			resident = null;
+		}
+	}
+}